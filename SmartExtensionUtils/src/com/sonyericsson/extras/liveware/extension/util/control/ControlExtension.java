@@ -278,16 +278,9 @@ public abstract class ControlExtension {
             Dbg.d("showImage: " + resourceId);
         }
 
-        Intent intent = new Intent();
-        intent.setAction(Control.Intents.CONTROL_DISPLAY_DATA_INTENT);
-
         Bitmap bitmap = BitmapFactory.decodeResource(mContext.getResources(), resourceId,
                 mBitmapOptions);
-        ByteArrayOutputStream os = new ByteArrayOutputStream(256);
-        bitmap.compress(CompressFormat.PNG, 100, os);
-        byte[] buffer = os.toByteArray();
-        intent.putExtra(Control.Intents.EXTRA_DATA, buffer);
-        sendToHostApp(intent);
+        showFrame(bitmap, false, 0, 0);
     }
 
     /**
@@ -300,12 +293,7 @@ public abstract class ControlExtension {
             Dbg.d("showBitmap");
         }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
-        bitmap.compress(CompressFormat.PNG, 100, outputStream);
-
-        Intent intent = new Intent(Control.Intents.CONTROL_DISPLAY_DATA_INTENT);
-        intent.putExtra(Control.Intents.EXTRA_DATA, outputStream.toByteArray());
-        sendToHostApp(intent);
+        showFrame(bitmap, false, 0, 0);
     }
 
     /**
@@ -320,13 +308,39 @@ public abstract class ControlExtension {
             Dbg.v("showBitmap x: " + x + " y: " + y);
         }
 
+        showFrame(bitmap, true, x, y);
+    }
+
+    /**
+     * Encode a bitmap and send it to the host application. Override to encode
+     * or send frames differently, {@link #sendFrame} sends the encoded frame.
+     *
+     * @param bitmap The bitmap to show.
+     * @param partial True if the bitmap only updates part of the screen.
+     * @param x The x position, only used for partial frames.
+     * @param y The y position, only used for partial frames.
+     */
+    protected void showFrame(final Bitmap bitmap, final boolean partial, final int x, final int y) {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
         bitmap.compress(CompressFormat.PNG, 100, outputStream);
+        sendFrame(outputStream.toByteArray(), x, y, partial);
+    }
 
+    /**
+     * Send an encoded frame to the host application.
+     *
+     * @param data The encoded frame.
+     * @param x The x position, only used for partial frames.
+     * @param y The y position, only used for partial frames.
+     * @param partial True if the frame only updates part of the screen.
+     */
+    protected void sendFrame(final byte[] data, final int x, final int y, final boolean partial) {
         Intent intent = new Intent(Control.Intents.CONTROL_DISPLAY_DATA_INTENT);
-        intent.putExtra(Control.Intents.EXTRA_X_OFFSET, x);
-        intent.putExtra(Control.Intents.EXTRA_Y_OFFSET, y);
-        intent.putExtra(Control.Intents.EXTRA_DATA, outputStream.toByteArray());
+        if (partial) {
+            intent.putExtra(Control.Intents.EXTRA_X_OFFSET, x);
+            intent.putExtra(Control.Intents.EXTRA_Y_OFFSET, y);
+        }
+        intent.putExtra(Control.Intents.EXTRA_DATA, data);
         sendToHostApp(intent);
     }
 
@@ -0,0 +1,347 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import de.schildbach.pte.dto.Departure;
+
+/**
+ * The departures of one station in a compact binary form, what the Pebble gets and what we keep
+ * on disk. Times are whole minutes relative to the board's base time, so an older board still
+ * counts down correctly.
+ *
+ * Layout, all numbers unsigned varints unless noted:
+ * <pre>
+ * magic 'S' 'B', version byte
+ * base time in minutes since the epoch
+ * station name
+ * line count, per line: label, style flag byte, if set background and foreground as 3 bytes RGB each
+ * destination count, per destination: name
+ * row count, per row: line index, destination index, planned minutes after base zigzag encoded,
+ *                     delay in minutes zigzag encoded plus one, zero if there is no prediction
+ * </pre>
+ * Strings are a varint byte length followed by UTF-8.
+ */
+public class DepartureBoard {
+
+    public static final int VERSION = 2;
+    private static final byte MAGIC_0 = 'S';
+    private static final byte MAGIC_1 = 'B';
+    private static final long MINUTE = 60 * 1000;
+    private static final int MAX_COUNT = 1024;
+
+    private final String mStationName;
+    private final long mBaseMinute;
+    private final List<String> mLines;
+    private final int[] mBackgrounds;
+    private final int[] mForegrounds;
+    private final boolean[] mStyled;
+    private final List<String> mDestinations;
+    //per row: line index, destination index, zigzag planned minute, zigzag delay + 1 or 0
+    private final int[] mRows;
+
+    private DepartureBoard(String stationName, long baseMinute, List<String> lines, int[] backgrounds, int[] foregrounds,
+            boolean[] styled, List<String> destinations, int[] rows) {
+        this.mStationName = stationName;
+        this.mBaseMinute = baseMinute;
+        this.mLines = lines;
+        this.mBackgrounds = backgrounds;
+        this.mForegrounds = foregrounds;
+        this.mStyled = styled;
+        this.mDestinations = destinations;
+        this.mRows = rows;
+    }
+
+    /**
+     * @param departures sorted by time, at most the ones that should be shown
+     * @param now base time of the board, rounded down to the minute
+     */
+    public static DepartureBoard create(String stationName, List<Departure> departures, long now) {
+        final long baseMinute = now / MINUTE;
+        final HashMap<String, Integer> lineIndex = new HashMap<String, Integer>();
+        final HashMap<String, Integer> destinationIndex = new HashMap<String, Integer>();
+        final List<String> lines = new ArrayList<String>();
+        final List<String> destinations = new ArrayList<String>();
+        final List<int[]> styles = new ArrayList<int[]>();
+        final int[] rows = new int[departures.size() * 4];
+
+        for (int i = 0; i < departures.size(); i++) {
+            final Departure departure = departures.get(i);
+            final String label = departure.line != null && departure.line.label != null ? departure.line.label : "";
+            Integer line = lineIndex.get(label);
+            if(line == null)
+            {
+                line = lines.size();
+                lineIndex.put(label, line);
+                lines.add(label);
+                if(departure.line != null && departure.line.style != null)
+                    styles.add(new int[]{departure.line.style.backgroundColor, departure.line.style.foregroundColor});
+                else
+                    styles.add(null);
+            }
+            final String name = departure.destination != null && departure.destination.name != null ? departure.destination.name : "";
+            Integer destination = destinationIndex.get(name);
+            if(destination == null)
+            {
+                destination = destinations.size();
+                destinationIndex.put(name, destination);
+                destinations.add(name);
+            }
+            final long planned = (departure.plannedTime != null ? departure.plannedTime : departure.getTime()).getTime() / MINUTE;
+            rows[i * 4] = line;
+            rows[i * 4 + 1] = destination;
+            //a late departure may be planned before the base time, keep the sign so planned plus delay holds
+            rows[i * 4 + 2] = zigzag((int) (planned - baseMinute));
+            if(departure.predictedTime != null && departure.plannedTime != null)
+                rows[i * 4 + 3] = zigzag((int) (departure.predictedTime.getTime() / MINUTE - planned)) + 1;
+        }
+
+        final int[] backgrounds = new int[lines.size()];
+        final int[] foregrounds = new int[lines.size()];
+        final boolean[] styled = new boolean[lines.size()];
+        for (int i = 0; i < styles.size(); i++) {
+            final int[] style = styles.get(i);
+            if(style != null)
+            {
+                styled[i] = true;
+                backgrounds[i] = style[0] | 0xff000000;
+                foregrounds[i] = style[1] | 0xff000000;
+            }
+        }
+        return new DepartureBoard(stationName != null ? stationName : "", baseMinute, lines, backgrounds, foregrounds, styled, destinations, rows);
+    }
+
+    public byte[] encode() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64 + mRows.length * 2);
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        writeVarLong(out, mBaseMinute);
+        writeString(out, mStationName);
+        writeVarInt(out, mLines.size());
+        for (int i = 0; i < mLines.size(); i++) {
+            writeString(out, mLines.get(i));
+            out.write(mStyled[i] ? 1 : 0);
+            if(mStyled[i])
+            {
+                writeRgb(out, mBackgrounds[i]);
+                writeRgb(out, mForegrounds[i]);
+            }
+        }
+        writeVarInt(out, mDestinations.size());
+        for (String destination : mDestinations)
+            writeString(out, destination);
+        writeVarInt(out, getRowCount());
+        for (int value : mRows)
+            writeVarInt(out, value);
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the data is no board or written by a version we don't know
+     */
+    public static DepartureBoard decode(byte[] data) throws IOException {
+        final Reader in = new Reader(data);
+        if(in.readByte() != MAGIC_0 || in.readByte() != MAGIC_1)
+            throw new IOException("not a departure board");
+        final int version = in.readByte();
+        if(version != VERSION)
+            throw new IOException("unknown board version " + version);
+        final long baseMinute = in.readVarLong();
+        final String stationName = in.readString();
+
+        final int lineCount = in.readCount();
+        final List<String> lines = new ArrayList<String>(lineCount);
+        final int[] backgrounds = new int[lineCount];
+        final int[] foregrounds = new int[lineCount];
+        final boolean[] styled = new boolean[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            lines.add(in.readString());
+            styled[i] = in.readByte() != 0;
+            if(styled[i])
+            {
+                backgrounds[i] = in.readRgb();
+                foregrounds[i] = in.readRgb();
+            }
+        }
+        final int destinationCount = in.readCount();
+        final List<String> destinations = new ArrayList<String>(destinationCount);
+        for (int i = 0; i < destinationCount; i++)
+            destinations.add(in.readString());
+
+        final int rowCount = in.readCount();
+        final int[] rows = new int[rowCount * 4];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = in.readVarInt();
+        for (int i = 0; i < rowCount; i++) {
+            if(rows[i * 4] >= lineCount || rows[i * 4 + 1] >= destinationCount)
+                throw new IOException("row " + i + " out of range");
+        }
+        return new DepartureBoard(stationName, baseMinute, lines, backgrounds, foregrounds, styled, destinations, rows);
+    }
+
+    public String getStationName() {
+        return mStationName;
+    }
+
+    /**
+     * @return the base time in milliseconds, rounded down to the minute
+     */
+    public long getBaseTime() {
+        return mBaseMinute * MINUTE;
+    }
+
+    public int getRowCount() {
+        return mRows.length / 4;
+    }
+
+    public String getLine(int row) {
+        return mLines.get(mRows[row * 4]);
+    }
+
+    public String getDestination(int row) {
+        return mDestinations.get(mRows[row * 4 + 1]);
+    }
+
+    /**
+     * @return planned departure in minutes after the base time, negative if planned before it
+     */
+    public int getPlannedMinutes(int row) {
+        return unzigzag(mRows[row * 4 + 2]);
+    }
+
+    public boolean hasDelay(int row) {
+        return mRows[row * 4 + 3] != 0;
+    }
+
+    /**
+     * @return predicted minus planned minutes, 0 without prediction
+     */
+    public int getDelay(int row) {
+        final int delay = mRows[row * 4 + 3];
+        return delay == 0 ? 0 : unzigzag(delay - 1);
+    }
+
+    public boolean hasStyle(int row) {
+        return mStyled[mRows[row * 4]];
+    }
+
+    public int getBackgroundColor(int row) {
+        return mBackgrounds[mRows[row * 4]];
+    }
+
+    public int getForegroundColor(int row) {
+        return mForegrounds[mRows[row * 4]];
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        writeVarLong(out, value & 0xffffffffL);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        final byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e); //always supported
+        }
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeRgb(ByteArrayOutputStream out, int color) {
+        out.write((color >> 16) & 0xff);
+        out.write((color >> 8) & 0xff);
+        out.write(color & 0xff);
+    }
+
+    private static class Reader {
+        private final byte[] mData;
+        private int mPos = 0;
+
+        Reader(byte[] data) {
+            this.mData = data;
+        }
+
+        int readByte() throws IOException {
+            if(mPos >= mData.length)
+                throw new IOException("truncated board");
+            return mData[mPos++] & 0xff;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("malformed varint");
+        }
+
+        int readVarInt() throws IOException {
+            final long value = readVarLong();
+            if(value > 0xffffffffL)
+                throw new IOException("malformed varint");
+            return (int) value;
+        }
+
+        int readCount() throws IOException {
+            final int count = readVarInt();
+            if(count < 0 || count > MAX_COUNT)
+                throw new IOException("bad count " + count);
+            return count;
+        }
+
+        int readRgb() throws IOException {
+            return 0xff000000 | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        String readString() throws IOException {
+            final int length = readVarInt();
+            if(length < 0 || length > mData.length - mPos)
+                throw new IOException("truncated board");
+            final String value = new String(mData, mPos, length, "UTF-8");
+            mPos += length;
+            return value;
+        }
+    }
+}
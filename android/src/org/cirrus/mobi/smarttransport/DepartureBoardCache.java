@@ -0,0 +1,148 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.util.Log;
+import de.schildbach.pte.NetworkId;
+
+/**
+ * The last departure board of every station on disk, in the DepartureBoard format. Outlives the
+ * process and the in memory DepartureCache, so there is something to show when we are offline.
+ */
+public class DepartureBoardCache {
+
+    private static final String TAG = "SMT/BoardCache";
+    private static final String DIR_NAME = "boards";
+    //the departures on an older board are gone anyway
+    private static final long MAX_AGE = 3 * 60 * 60 * 1000L;
+    private static final int MAX_FILES = 64;
+
+    private static DepartureBoardCache sInstance;
+
+    private final File mDir;
+
+    DepartureBoardCache(File dir) {
+        this.mDir = dir;
+    }
+
+    public static synchronized DepartureBoardCache getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new DepartureBoardCache(new File(context.getApplicationContext().getCacheDir(), DIR_NAME));
+        return sInstance;
+    }
+
+    /**
+     * @return the last board of the station, null if there is none or it is too old
+     */
+    public synchronized DepartureBoard get(NetworkId networkId, String stationId) {
+        final File file = fileFor(networkId, stationId);
+        if(!file.exists())
+            return null;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                bytes.write(buffer, 0, read);
+            final DepartureBoard board = DepartureBoard.decode(bytes.toByteArray());
+            if(System.currentTimeMillis() - board.getBaseTime() > MAX_AGE)
+            {
+                file.delete();
+                return null;
+            }
+            return board;
+        } catch (IOException e) {
+            //unreadable, e.g. written by an older version
+            Log.w(TAG, "dropping cache file "+file.getName(), e);
+            file.delete();
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    public synchronized void put(NetworkId networkId, String stationId, DepartureBoard board) {
+        if(!mDir.exists() && !mDir.mkdirs())
+            return;
+        final File file = fileFor(networkId, stationId);
+        final File tmp = new File(mDir, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(board.encode());
+            out.close();
+            out = null;
+            if(!tmp.renameTo(file))
+                tmp.delete();
+        } catch (IOException e) {
+            Log.w(TAG, "could not write "+file.getName(), e);
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+        trim();
+    }
+
+    /**
+     * Keeps the most recently written boards.
+     */
+    private void trim() {
+        final File[] files = mDir.listFiles();
+        if(files == null || files.length <= MAX_FILES)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        for (int i = MAX_FILES; i < files.length; i++)
+            files[i].delete();
+    }
+
+    private File fileFor(NetworkId networkId, String stationId) {
+        //station ids are provider specific, keep them out of the path syntax
+        return new File(mDir, networkId + "_" + stationId.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    private static void close(Closeable closeable) {
+        if(closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+}
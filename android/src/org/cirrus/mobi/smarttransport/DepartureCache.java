@@ -0,0 +1,120 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+
+/**
+ * Process wide LRU cache of departure results, keyed by provider and station id.
+ * Entries younger than the time to live are served without a query, older ones are still
+ * served while a fresh query runs in the background. Departures carry absolute times, so the
+ * minutes shown on the watch move on by themselves while the result sits in the cache.
+ */
+public class DepartureCache {
+
+    public static final long DEFAULT_TIME_TO_LIVE = 60 * 1000;
+    //older results are dropped, most of their departures are gone anyway
+    public static final long DEFAULT_MAX_STALE_AGE = 15 * 60 * 1000;
+    private static final int MAX_ENTRIES = 64;
+
+    private static DepartureCache sInstance;
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private long mTimeToLive = DEFAULT_TIME_TO_LIVE;
+    private long mMaxStaleAge = DEFAULT_MAX_STALE_AGE;
+
+    public static class Entry {
+        public final QueryDeparturesResult result;
+        public final long fetchTime;
+        private final long freshUntil;
+
+        Entry(QueryDeparturesResult result, long fetchTime, long freshUntil) {
+            this.result = result;
+            this.fetchTime = fetchTime;
+            this.freshUntil = freshUntil;
+        }
+
+        /**
+         * @return false if the result should be revalidated
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < freshUntil;
+        }
+    }
+
+    private DepartureCache() {
+    }
+
+    public static synchronized DepartureCache getInstance() {
+        if(sInstance == null)
+            sInstance = new DepartureCache();
+        return sInstance;
+    }
+
+    /**
+     * @return the cached departures of the station, or null if there are none or they are too old to show
+     */
+    public synchronized Entry get(NetworkId networkId, String stationId) {
+        final String key = key(networkId, stationId);
+        final Entry entry = mEntries.get(key);
+        if(entry == null)
+            return null;
+        if(System.currentTimeMillis() - entry.fetchTime > mMaxStaleAge)
+        {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a result, failed queries are not cached.
+     */
+    public synchronized void put(NetworkId networkId, String stationId, QueryDeparturesResult result) {
+        if(result == null || result.status != QueryDeparturesResult.Status.OK)
+            return;
+        final long now = System.currentTimeMillis();
+        mEntries.put(key(networkId, stationId), new Entry(result, now, now + mTimeToLive));
+    }
+
+    public synchronized void setTimeToLive(long timeToLive) {
+        mTimeToLive = timeToLive;
+    }
+
+    public synchronized void setMaxStaleAge(long maxStaleAge) {
+        mMaxStaleAge = maxStaleAge;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private static String key(NetworkId networkId, String stationId) {
+        return networkId + ":" + stationId;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+import de.schildbach.pte.NetworkId;
+
+/**
+ * Bounded thread pools for the network queries. AsyncTask.execute() runs all tasks one after
+ * another, so every provider gets its own small pool instead. The per provider limit keeps us
+ * from hammering a single backend while queries against different providers don't block each other.
+ */
+public class DepartureFetchExecutor {
+
+    private static final int DEFAULT_CONCURRENCY = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final HashMap<NetworkId, Integer> sConcurrencyLimits = new HashMap<NetworkId, Integer>();
+    private static final HashMap<NetworkId, ThreadPoolExecutor> sExecutors = new HashMap<NetworkId, ThreadPoolExecutor>();
+
+    private DepartureFetchExecutor() {
+    }
+
+    /**
+     * @return the executor to run queries against the given provider on
+     */
+    public static synchronized Executor forProvider(final NetworkId networkId) {
+        ThreadPoolExecutor executor = sExecutors.get(networkId);
+        if(executor == null)
+        {
+            final int limit = getConcurrencyLimit(networkId);
+            executor = new ThreadPoolExecutor(limit, limit, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new FetchThreadFactory(networkId));
+            //don't keep idle threads around once the watch is done
+            executor.allowCoreThreadTimeOut(true);
+            sExecutors.put(networkId, executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Limits the number of parallel queries against one provider.
+     */
+    public static synchronized void setConcurrencyLimit(NetworkId networkId, int limit) {
+        if(limit < 1)
+            throw new IllegalArgumentException("limit < 1");
+        sConcurrencyLimits.put(networkId, limit);
+        final ThreadPoolExecutor executor = sExecutors.get(networkId);
+        if(executor != null)
+        {
+            //order matters, core size must never exceed max size
+            if(limit > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(limit);
+                executor.setCorePoolSize(limit);
+            } else {
+                executor.setCorePoolSize(limit);
+                executor.setMaximumPoolSize(limit);
+            }
+        }
+    }
+
+    private static int getConcurrencyLimit(NetworkId networkId) {
+        final Integer limit = sConcurrencyLimits.get(networkId);
+        if(limit == null)
+            return DEFAULT_CONCURRENCY;
+        return limit;
+    }
+
+    private static class FetchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+        private final String mPrefix;
+
+        FetchThreadFactory(NetworkId networkId) {
+            mPrefix = "SMT/Fetch-" + networkId + "-";
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mPrefix + mCount.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.StationDepartures;
+
+/**
+ * Departures are queried in pages: a small first one that is quick to get on the screen,
+ * further ones starting at the last departure we have once the user scrolls towards the end.
+ */
+public class DeparturePages {
+
+    public static final int FIRST_PAGE = 6;
+    public static final int NEXT_PAGE = 10;
+
+    private DeparturePages() {
+    }
+
+    /**
+     * The page goes on from the last planned time of every platform, the earliest of them, so no
+     * platform misses the departures between the end of its page and the others. Planned, not
+     * predicted: departures planned before a late one's predicted time would be skipped otherwise.
+     *
+     * @return the time to query the next page from, null if there are no departures
+     */
+    public static Date nextPageStart(QueryDeparturesResult result) {
+        Date start = null;
+        for (StationDepartures stationDepartures : result.stationDepartures) {
+            Date last = null;
+            for (Departure departure : stationDepartures.departures) {
+                final Date time = departure.plannedTime != null ? departure.plannedTime : departure.getTime();
+                if(last == null || time.after(last))
+                    last = time;
+            }
+            if(last != null && (start == null || last.before(start)))
+                start = last;
+        }
+        return start;
+    }
+
+    /**
+     * Appends the departures of the next page, pages overlap at their borders so departures
+     * we have already are skipped. Neither of the results is modified.
+     */
+    public static QueryDeparturesResult merge(QueryDeparturesResult loaded, QueryDeparturesResult nextPage) {
+        final QueryDeparturesResult merged = new QueryDeparturesResult(loaded.header);
+        for (StationDepartures stationDepartures : loaded.stationDepartures) {
+            final StationDepartures next = nextPage.findStationDepartures(stationDepartures.location.id);
+            if(next == null)
+            {
+                merged.stationDepartures.add(stationDepartures);
+                continue;
+            }
+            final List<Departure> departures = new ArrayList<Departure>(stationDepartures.departures);
+            final HashSet<Departure> known = new HashSet<Departure>(departures);
+            for (Departure departure : next.departures) {
+                if(known.add(departure))
+                    departures.add(departure);
+            }
+            //pages start at planned times, a late departure may belong before ones we have
+            Collections.sort(departures, Departure.TIME_COMPARATOR);
+            merged.stationDepartures.add(new StationDepartures(stationDepartures.location, departures, stationDepartures.lines));
+        }
+        //stations that only showed up on the next page
+        for (StationDepartures next : nextPage.stationDepartures) {
+            if(loaded.findStationDepartures(next.location.id) == null)
+                merged.stationDepartures.add(next);
+        }
+        return merged;
+    }
+
+    /**
+     * @return the number of departures in the result
+     */
+    public static int count(QueryDeparturesResult result) {
+        int count = 0;
+        for (StationDepartures stationDepartures : result.stationDepartures)
+            count += stationDepartures.departures.size();
+        return count;
+    }
+}
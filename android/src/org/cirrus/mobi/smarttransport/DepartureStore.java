@@ -0,0 +1,82 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.HashMap;
+
+import de.schildbach.pte.dto.QueryDeparturesResult;
+
+/**
+ * Holds the departures of the stations currently shown on the watch, keyed by station id.
+ * Results may arrive in any order, each one lands in the slot of the station it was requested for.
+ */
+public class DepartureStore {
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    static class Entry {
+        final QueryDeparturesResult result;
+        final long fetchTime;
+
+        Entry(QueryDeparturesResult result, long fetchTime) {
+            this.result = result;
+            this.fetchTime = fetchTime;
+        }
+    }
+
+    /**
+     * Stores the result for the given station.
+     *
+     * @return true if the departures differ from the ones stored before
+     */
+    public boolean put(String stationId, QueryDeparturesResult result) {
+        final Entry old = mEntries.put(stationId, new Entry(result, System.currentTimeMillis()));
+        if(old == null)
+            return true;
+        return !old.result.stationDepartures.equals(result.stationDepartures);
+    }
+
+    public QueryDeparturesResult get(String stationId) {
+        final Entry entry = mEntries.get(stationId);
+        if(entry == null)
+            return null;
+        return entry.result;
+    }
+
+    public boolean contains(String stationId) {
+        return mEntries.containsKey(stationId);
+    }
+
+    /**
+     * @return the time the departures of this station were stored, or -1 if there are none
+     */
+    public long getFetchTime(String stationId) {
+        final Entry entry = mEntries.get(stationId);
+        if(entry == null)
+            return -1;
+        return entry.fetchTime;
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.StationDepartures;
+
+/**
+ * Helpers to skip departures that are gone. The departure lists are sorted by time as delivered
+ * by the providers and may be shared with caches, so they are never modified here.
+ */
+public class Departures {
+
+    private static final long MINUTE = 60 * 1000;
+
+    private Departures() {
+    }
+
+    /**
+     * A departure is gone once less than a minute is left until its predicted time,
+     * or its planned time if there is no prediction.
+     */
+    public static boolean isGone(Departure departure, long now) {
+        return departure.getTime().getTime() - now < MINUTE;
+    }
+
+    /**
+     * @return the index of the first departure that is not gone, the list size if all are gone
+     */
+    public static int firstUpcoming(List<Departure> departures, long now) {
+        int low = 0;
+        int high = departures.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if(isGone(departures.get(mid), now))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return a read only view of the departures that are not gone
+     */
+    public static List<Departure> upcoming(List<Departure> departures, long now) {
+        return Collections.unmodifiableList(departures.subList(firstUpcoming(departures, now), departures.size()));
+    }
+
+    /**
+     * @return the departures that are not gone of all platforms, sorted by time
+     */
+    public static List<Departure> upcoming(QueryDeparturesResult result, long now) {
+        final List<Departure> upcoming = new ArrayList<Departure>();
+        for (StationDepartures stationDepartures : result.stationDepartures)
+            upcoming.addAll(upcoming(stationDepartures.departures, now));
+        if(result.stationDepartures.size() > 1)
+            Collections.sort(upcoming, Departure.TIME_COMPARATOR);
+        return upcoming;
+    }
+
+    /**
+     * @return minutes until the given time, rounded down
+     */
+    public static long minutesUntil(long time, long now) {
+        return ((time - now)/1000)/60;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Compares each frame with the one sent before, row by row, and only sends the bands of rows
+ * that changed. A minute tick on one departure row then costs a thin strip instead of the whole
+ * screen. Falls back to a full frame if there is nothing to compare with or most of it changed.
+ */
+public class DirtyRegionRenderer {
+
+    private static final String TAG = "SMT/DirtyRegion";
+    //bands closer than this are sent as one, every update has its own overhead on the host app
+    private static final int MERGE_GAP = 4;
+    private static final int MAX_BANDS = 3;
+    //send the full frame if more than this share of the rows changed
+    private static final float FULL_FRAME_RATIO = 0.6f;
+
+    interface FrameSink {
+        public void sendFrame(Bitmap frame);
+        public void sendRegion(Bitmap region, int x, int y);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final FrameBufferPool mPool;
+    private int[] mPrevious;
+    private int[] mCurrent;
+    private boolean mHasPrevious = false;
+    private int mBandCount;
+    private final int[] mBandStart = new int[MAX_BANDS];
+    private final int[] mBandEnd = new int[MAX_BANDS];
+
+    public DirtyRegionRenderer(int width, int height, FrameBufferPool pool) {
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mPool = pool;
+        this.mPrevious = new int[width * height];
+        this.mCurrent = new int[width * height];
+    }
+
+    /**
+     * Forget the last frame, the next one is sent in full. Call this whenever the watch
+     * may not show our last frame anymore, e.g. on resume.
+     */
+    public void invalidate() {
+        mHasPrevious = false;
+    }
+
+    public void render(Bitmap frame, FrameSink sink) {
+        frame.getPixels(mCurrent, 0, mWidth, 0, 0, mWidth, mHeight);
+        final boolean full = !mHasPrevious || !findDirtyBands();
+        if(full)
+        {
+            sink.sendFrame(frame);
+        }
+        else
+        {
+            for (int i = 0; i < mBandCount; i++) {
+                final int top = mBandStart[i];
+                final int bandHeight = mBandEnd[i] - top;
+                if(BuildConfig.DEBUG)
+                    Log.d(TAG, "sending rows "+top+" - "+mBandEnd[i]);
+                final Bitmap strip = mPool.acquireStrip(bandHeight);
+                strip.setPixels(mCurrent, top * mWidth, mWidth, 0, 0, mWidth, bandHeight);
+                sink.sendRegion(strip, 0, top);
+            }
+        }
+        //the frame we just sent is the base for the next diff
+        final int[] swap = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = swap;
+        mHasPrevious = true;
+    }
+
+    /**
+     * Collects the changed rows into merged bands.
+     *
+     * @return false if a full frame is cheaper
+     */
+    private boolean findDirtyBands() {
+        mBandCount = 0;
+        int dirtyRows = 0;
+        int lastDirty = -MERGE_GAP - 1;
+        for (int y = 0; y < mHeight; y++) {
+            if(!rowChanged(y))
+                continue;
+            dirtyRows++;
+            if(y - lastDirty > MERGE_GAP)
+            {
+                if(mBandCount == MAX_BANDS)
+                    return false;
+                mBandStart[mBandCount] = y;
+                mBandCount++;
+            }
+            mBandEnd[mBandCount - 1] = y + 1;
+            lastDirty = y;
+        }
+        if(dirtyRows > mHeight * FULL_FRAME_RATIO)
+            return false;
+        return true;
+    }
+
+    private boolean rowChanged(int y) {
+        final int start = y * mWidth;
+        final int end = start + mWidth;
+        for (int i = start; i < end; i++) {
+            if(mPrevious[i] != mCurrent[i])
+                return true;
+        }
+        return false;
+    }
+}
@@ -72,6 +72,7 @@ public class FavListActivity extends ListActivity implements EnhancedListView.On
         EntityService favLocationService = new EntityService(mContext, FavLocation.class);
         FavLocation location = mArrayAdapter.getItem(i);
         favLocationService.delete(location);
+        FavouritesCache.getInstance(mContext).invalidate();
         mArrayAdapter.remove(location);
         return null;
     }
@@ -0,0 +1,128 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import com.arconsis.android.datarobot.EntityService;
+
+import org.cirrus.mobi.smarttransport.dto.FavLocation;
+
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+
+/**
+ * The favourite stations, read from the database once on a background thread and kept in memory
+ * until someone changes them. Only used from the main thread.
+ */
+public class FavouritesCache {
+
+    interface Listener {
+        public void favouritesLoaded(List<Location> favourites);
+    }
+
+    private static FavouritesCache sInstance;
+
+    private final Context mContext;
+    private List<Location> mFavourites;
+    private LoadFavsTask mLoadTask;
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    private FavouritesCache(Context context) {
+        this.mContext = context.getApplicationContext();
+    }
+
+    public static synchronized FavouritesCache getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new FavouritesCache(context);
+        return sInstance;
+    }
+
+    /**
+     * Hands the favourites to the listener, right away if they are loaded already.
+     */
+    public void load(Listener listener) {
+        if(mFavourites != null)
+        {
+            listener.favouritesLoaded(mFavourites);
+            return;
+        }
+        mListeners.add(listener);
+        if(mLoadTask == null)
+        {
+            mLoadTask = new LoadFavsTask();
+            mLoadTask.execute();
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Call after the favourites in the database changed.
+     */
+    public void invalidate() {
+        mFavourites = null;
+        if(mLoadTask != null)
+        {
+            //might have read the old state, start over
+            mLoadTask.cancel(false);
+            mLoadTask = new LoadFavsTask();
+            mLoadTask.execute();
+        }
+    }
+
+    private void loaded(List<Location> favourites) {
+        mLoadTask = null;
+        mFavourites = favourites;
+        final List<Listener> listeners = new ArrayList<Listener>(mListeners);
+        mListeners.clear();
+        for (Listener listener : listeners)
+            listener.favouritesLoaded(favourites);
+    }
+
+    class LoadFavsTask extends AsyncTask<Void, Void, List<Location>> {
+
+        @Override
+        protected List<Location> doInBackground(Void... params) {
+            EntityService favLocationService = new EntityService(mContext, FavLocation.class);
+            List<FavLocation> favLocations = favLocationService.get();
+            favLocationService.close();
+
+            final List<Location> favourites = new ArrayList<Location>();
+            if(favLocations != null)
+            {
+                for (FavLocation favLocation : favLocations)
+                    favourites.add(new Location(LocationType.STATION, favLocation.id, favLocation.lat, favLocation.lon, favLocation.place, favLocation.name));
+            }
+            return Collections.unmodifiableList(favourites);
+        }
+
+        @Override
+        protected void onPostExecute(List<Location> favourites) {
+            if(!isCancelled())
+                loaded(favourites);
+        }
+    }
+}
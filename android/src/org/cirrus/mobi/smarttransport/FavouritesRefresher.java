@@ -0,0 +1,283 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.getpebble.android.kit.PebbleKit;
+import com.sonyericsson.extras.liveware.extension.util.ExtensionUtils;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+
+/**
+ * Keeps the departures of the favourites in the DepartureCache, so opening the favourites shows
+ * them right away. An alarm refreshes them often around the hours the user usually opens the
+ * favourites and less often otherwise, still before the cached departures expire. It backs off while
+ * no watch is connected or the battery is low.
+ *
+ * The alarms don't wake the phone, a refresh while it sleeps would be gone before anyone looks.
+ */
+public class FavouritesRefresher implements PublicNetworkProvider.ResultCallbacks {
+
+    private static final String TAG = "SMT/FavsRefresher";
+    static final String ACTION_REFRESH = "org.cirrus.mobi.smarttransport.favourites.refresh";
+
+    //both within the DepartureCache's max stale age, so a refreshed entry is still there when the
+    //favourites get opened and shows while it is revalidated
+    private static final long USUAL_INTERVAL = 5 * 60 * 1000;
+    private static final long DEFAULT_INTERVAL = DepartureCache.DEFAULT_MAX_STALE_AGE - 3 * 60 * 1000;
+    private static final long BACKOFF_INTERVAL = 2 * 60 * 60 * 1000;
+    //right after a watch connected
+    private static final long CONNECT_DELAY = 10 * 1000;
+    private static final int REFRESH_FAVS = 8;
+    private static final int LOW_BATTERY_PERCENT = 15;
+    //alarm broadcasts are in the background queue, which gives a receiver a minute
+    private static final long REFRESH_TIMEOUT = 45 * 1000;
+
+    private static final String USAGE_PREFS = "favourites_usage";
+    private static final String USAGE_KEY = "hour_";
+    //halve all counts beyond that, so habits that changed fade out
+    private static final int MAX_USAGE = 64;
+
+    private static FavouritesRefresher sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mUsage;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private PublicNetworkProvider mPublicNetworkProvider;
+    //keeps the process alive until the refresh is done
+    private BroadcastReceiver.PendingResult mPendingResult;
+    //favourites whose queries are still running
+    private final HashSet<String> mPending = new HashSet<String>();
+    //cached departures are delivered right away while the queries are started, they don't count
+    private boolean mRequesting = false;
+
+    private FavouritesRefresher(Context context) {
+        this.mContext = context.getApplicationContext();
+        this.mUsage = mContext.getSharedPreferences(USAGE_PREFS, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized FavouritesRefresher getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new FavouritesRefresher(context);
+        return sInstance;
+    }
+
+    /**
+     * Schedules the first refresh unless one is pending already.
+     */
+    public void start() {
+        if(createPendingRefreshIntent(PendingIntent.FLAG_NO_CREATE) == null)
+            schedule(nextInterval());
+    }
+
+    /**
+     * A watch connected, refresh soon instead of waiting for a backed off alarm.
+     */
+    public void connected() {
+        schedule(CONNECT_DELAY);
+    }
+
+    /**
+     * Remembers the hour the user opened the favourites.
+     */
+    public void recordUse() {
+        final int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        final int[] counts = usage();
+        counts[hour]++;
+        final SharedPreferences.Editor editor = mUsage.edit();
+        final boolean decay = counts[hour] > MAX_USAGE;
+        for (int i = 0; i < counts.length; i++) {
+            if(decay || i == hour)
+                editor.putInt(USAGE_KEY + i, decay ? counts[i] / 2 : counts[i]);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Called by the alarm. Call on the main thread.
+     *
+     * @param pendingResult of the alarm broadcast, finished once the departures are in
+     */
+    void refresh(BroadcastReceiver.PendingResult pendingResult) {
+        //a refresh still running is outdated
+        finish();
+        mPendingResult = pendingResult;
+        final long interval = nextInterval();
+        schedule(interval);
+        if(interval == BACKOFF_INTERVAL)
+        {
+            finish();
+            return;
+        }
+
+        final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext);
+        final String prefKey = mContext.getResources().getString(R.string.pref_publicnetwork);
+        if(!sharedPref.contains(prefKey))
+        {
+            finish();
+            return;
+        }
+        if(BuildConfig.DEBUG)
+            Log.d(TAG, "refreshing favourites, next in "+interval / 60000+" min");
+
+        final String providerClass = sharedPref.getString(prefKey, mContext.getResources().getString(R.string.pref_transportNetwork_default));
+        final NetworkProvider provider = NetworkProviderRegistry.getInstance(mContext).get(providerClass).provider;
+        if(provider == null)
+        {
+            finish();
+            return;
+        }
+        mPublicNetworkProvider = new PublicTransportationAPI(mContext).initNetworkProvider(this, providerClass);
+        mHandler.postDelayed(mTimeout, REFRESH_TIMEOUT);
+        FavouritesCache.getInstance(mContext).load(mFavouritesListener);
+    }
+
+    private void finish() {
+        mHandler.removeCallbacks(mTimeout);
+        FavouritesCache.getInstance(mContext).removeListener(mFavouritesListener);
+        mPending.clear();
+        if(mPublicNetworkProvider != null)
+        {
+            mPublicNetworkProvider.cancelRequests();
+            mPublicNetworkProvider = null;
+        }
+        if(mPendingResult != null)
+        {
+            mPendingResult.finish();
+            mPendingResult = null;
+        }
+    }
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if(BuildConfig.DEBUG)
+                Log.d(TAG, "refresh timed out, "+mPending.size()+" favourites left");
+            finish();
+        }
+    };
+
+    private final FavouritesCache.Listener mFavouritesListener = new FavouritesCache.Listener() {
+        @Override
+        public void favouritesLoaded(List<de.schildbach.pte.dto.Location> favourites) {
+            if(mPublicNetworkProvider == null)
+                return;
+            final int count = Math.min(REFRESH_FAVS, favourites.size());
+            mRequesting = true;
+            for (int i = 0; i < count; i++) {
+                final de.schildbach.pte.dto.Location favourite = favourites.get(i);
+                mPublicNetworkProvider.getDepatures(favourite);
+                //no query if the cached departures are fresh
+                if(mPublicNetworkProvider.isFetching(favourite.id))
+                    mPending.add(favourite.id);
+            }
+            mRequesting = false;
+            if(mPending.isEmpty())
+                finish();
+        }
+    };
+
+    private long nextInterval() {
+        //the Pebble users open the favourites as well
+        final boolean connected = ExtensionUtils.areAnyAccessoriesConnected(mContext) || PebbleKit.isWatchConnected(mContext);
+        if(!connected || isBatteryLow())
+            return BACKOFF_INTERVAL;
+        //refresh ahead of the usual hour as well
+        final Calendar now = Calendar.getInstance();
+        final int hour = now.get(Calendar.HOUR_OF_DAY);
+        final int[] counts = usage();
+        if(isUsualHour(counts, hour) || isUsualHour(counts, (hour + 1) % 24))
+            return USUAL_INTERVAL;
+        return DEFAULT_INTERVAL;
+    }
+
+    /**
+     * @return true if the user opened the favourites at that hour at least twice as often as on average
+     */
+    private static boolean isUsualHour(int[] counts, int hour) {
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        return counts[hour] >= 2 && counts[hour] * counts.length >= 2 * total;
+    }
+
+    private boolean isBatteryLow() {
+        //sticky, no receiver gets registered
+        final Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if(battery == null)
+            return false;
+        if(battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0)
+            return false;
+        final int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        final int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 < LOW_BATTERY_PERCENT * scale;
+    }
+
+    private int[] usage() {
+        final int[] counts = new int[24];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = mUsage.getInt(USAGE_KEY + i, 0);
+        return counts;
+    }
+
+    private void schedule(long delay) {
+        final AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay,
+                createPendingRefreshIntent(PendingIntent.FLAG_CANCEL_CURRENT));
+    }
+
+    private PendingIntent createPendingRefreshIntent(int flags) {
+        final Intent intent = new Intent(ACTION_REFRESH);
+        intent.setClass(mContext, FavouritesRefreshReceiver.class);
+        return PendingIntent.getBroadcast(mContext, 0, intent, flags);
+    }
+
+    @Override
+    public void nearbyStationsReceived(NearbyLocationsResult result) {
+        //not asked for
+    }
+
+    @Override
+    public void departuresReceived(de.schildbach.pte.dto.Location station, QueryDeparturesResult result) {
+        //the query is done whatever it brought, the PublicNetworkProvider cached what is worth keeping
+        if(mPublicNetworkProvider == null || mRequesting)
+            return;
+        mPending.remove(station.id);
+        if(mPending.isEmpty())
+            finish();
+    }
+}
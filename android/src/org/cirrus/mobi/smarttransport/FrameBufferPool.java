@@ -0,0 +1,117 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.util.DisplayMetrics;
+import android.util.SparseArray;
+
+/**
+ * Bitmaps and canvases for the watch frames, allocated once per control instead of per frame.
+ * Two full size buffers are used in turn, so the frame handed out is never the one sent last.
+ * Strips for partial updates are kept by height. The allocation counters should stop moving
+ * once every screen has been shown once.
+ */
+public class FrameBufferPool {
+
+    //partial updates come in a few heights only, drop them all if that stops being true
+    private static final int MAX_STRIPS = 8;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap.Config mConfig;
+    private final Bitmap[] mFrames = new Bitmap[2];
+    private final Canvas[] mCanvases = new Canvas[2];
+    private int mBack = 0;
+    private final SparseArray<Bitmap> mStrips = new SparseArray<Bitmap>();
+
+    private int mBitmapAllocations = 0;
+    private int mCanvasAllocations = 0;
+
+    public FrameBufferPool(int width, int height, Bitmap.Config config) {
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mConfig = config;
+    }
+
+    /**
+     * @return a cleared full size frame to draw the next screen into
+     */
+    public Bitmap acquireFrame() {
+        mBack = 1 - mBack;
+        Bitmap frame = mFrames[mBack];
+        if(frame == null)
+        {
+            frame = allocate(mWidth, mHeight);
+            mFrames[mBack] = frame;
+        }
+        else
+        {
+            //a fresh bitmap is black as well
+            frame.eraseColor(Color.BLACK);
+        }
+        return frame;
+    }
+
+    /**
+     * @return the canvas drawing into the frame last returned by {@link #acquireFrame()}
+     */
+    public Canvas getCanvas() {
+        Canvas canvas = mCanvases[mBack];
+        if(canvas == null)
+        {
+            canvas = new Canvas(mFrames[mBack]);
+            mCanvasAllocations++;
+            mCanvases[mBack] = canvas;
+        }
+        return canvas;
+    }
+
+    /**
+     * @return a full width strip of the given height, its content is undefined
+     */
+    public Bitmap acquireStrip(int height) {
+        Bitmap strip = mStrips.get(height);
+        if(strip == null)
+        {
+            if(mStrips.size() >= MAX_STRIPS)
+                mStrips.clear();
+            strip = allocate(mWidth, height);
+            mStrips.put(height, strip);
+        }
+        return strip;
+    }
+
+    private Bitmap allocate(int width, int height) {
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, mConfig);
+        // Set default density to avoid scaling.
+        bitmap.setDensity(DisplayMetrics.DENSITY_DEFAULT);
+        mBitmapAllocations++;
+        return bitmap;
+    }
+
+    public int getBitmapAllocations() {
+        return mBitmapAllocations;
+    }
+
+    public int getCanvasAllocations() {
+        return mCanvasAllocations;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Sits between the control extension and the host application. Frames that
+ * are identical to what the accessory already shows in the same region are
+ * dropped, and bursts are limited to one send per interval. Frames that
+ * arrive within the interval are held back and the latest of them is sent
+ * when it ends, so the accessory always ends up with the newest content.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class FrameDispatcher {
+
+    private static final String TAG = "SMT/FrameDispatcher";
+
+    /**
+     * Default minimum time between two sends in milliseconds.
+     */
+    public static final long DEFAULT_MIN_INTERVAL = 100;
+
+    /**
+     * Receives the frames that should go to the accessory.
+     */
+    public interface Sender {
+        /**
+         * Send a frame.
+         *
+         * @param data The encoded frame.
+         * @param x The x position, only used for partial frames.
+         * @param y The y position, only used for partial frames.
+         * @param partial True if the frame only updates part of the screen.
+         */
+        void sendFrame(byte[] data, int x, int y, boolean partial);
+    }
+
+    private static class Frame {
+        final byte[] data;
+
+        final int hash;
+
+        final boolean partial;
+
+        final int left;
+
+        final int top;
+
+        final int right;
+
+        final int bottom;
+
+        Frame(final byte[] data, final boolean partial, final int x, final int y,
+                final int width, final int height) {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+            this.partial = partial;
+            this.left = x;
+            this.top = y;
+            this.right = x + width;
+            this.bottom = y + height;
+        }
+
+        boolean sameRegion(final Frame other) {
+            return partial == other.partial && left == other.left && top == other.top
+                    && right == other.right && bottom == other.bottom;
+        }
+
+        boolean contains(final Frame other) {
+            return !partial
+                    || (left <= other.left && top <= other.top && right >= other.right && bottom >= other.bottom);
+        }
+
+        boolean overlaps(final Frame other) {
+            return !partial || !other.partial
+                    || (left < other.right && other.left < right && top < other.bottom && other.top < bottom);
+        }
+
+        boolean sameContent(final Frame other) {
+            return hash == other.hash && Arrays.equals(data, other.data);
+        }
+    }
+
+    private final Sender mSender;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * What the accessory shows, as far as we know. A full frame replaces all
+     * entries, a partial one replaces the entries it overlaps.
+     */
+    private final ArrayList<Frame> mShown = new ArrayList<Frame>();
+
+    /**
+     * Frames waiting for the end of the current interval, in send order.
+     */
+    private final ArrayList<Frame> mPending = new ArrayList<Frame>();
+
+    private long mMinInterval = DEFAULT_MIN_INTERVAL;
+
+    private long mLastSendTime;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Create frame dispatcher.
+     *
+     * @param sender Receives the frames to send.
+     */
+    public FrameDispatcher(final Sender sender) {
+        if(sender == null) {
+            throw new IllegalArgumentException("sender == null");
+        }
+        mSender = sender;
+    }
+
+    /**
+     * Set the minimum time between two sends.
+     *
+     * @param minInterval The interval in milliseconds, 0 sends every frame
+     *            right away.
+     */
+    public void setMinInterval(final long minInterval) {
+        mMinInterval = minInterval;
+    }
+
+    /**
+     * Dispatch a frame.
+     *
+     * @param data The encoded frame.
+     * @param partial True if the frame only updates part of the screen.
+     * @param x The x position.
+     * @param y The y position.
+     * @param width The frame width.
+     * @param height The frame height.
+     */
+    public void dispatch(final byte[] data, final boolean partial, final int x, final int y,
+            final int width, final int height) {
+        final Frame frame = new Frame(data, partial, x, y, width, height);
+
+        // Anything pending that the new frame paints over is outdated.
+        final Iterator<Frame> iterator = mPending.iterator();
+        while (iterator.hasNext()) {
+            if(frame.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+        mPending.add(frame);
+
+        final long wait = mLastSendTime + mMinInterval - SystemClock.uptimeMillis();
+        if(wait <= 0) {
+            mHandler.removeCallbacks(mFlush);
+            flush();
+        } else {
+            mHandler.removeCallbacks(mFlush);
+            mHandler.postDelayed(mFlush, wait);
+        }
+    }
+
+    /**
+     * Forget what the accessory shows and drop pending frames. Called when
+     * the control is paused: while we are not in the foreground the host
+     * application may clear the display or show something else, so the
+     * first frames after resume must go out even if they equal the last ones
+     * sent.
+     */
+    public void reset() {
+        mHandler.removeCallbacks(mFlush);
+        mPending.clear();
+        mShown.clear();
+    }
+
+    private void flush() {
+        boolean sent = false;
+        for (Frame frame : mPending) {
+            if(isShown(frame)) {
+                if(BuildConfig.DEBUG) {
+                    Log.v(TAG, "dropping duplicate frame");
+                }
+                continue;
+            }
+            mSender.sendFrame(frame.data, frame.left, frame.top, frame.partial);
+            markShown(frame);
+            sent = true;
+        }
+        mPending.clear();
+        if(sent) {
+            mLastSendTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    private boolean isShown(final Frame frame) {
+        for (Frame shown : mShown) {
+            if(shown.sameRegion(frame)) {
+                return shown.sameContent(frame);
+            }
+        }
+        return false;
+    }
+
+    private void markShown(final Frame frame) {
+        if(!frame.partial) {
+            mShown.clear();
+        } else {
+            final Iterator<Frame> iterator = mShown.iterator();
+            while (iterator.hasNext()) {
+                if(frame.overlaps(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        }
+        mShown.add(frame);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Encodes the bitmaps sent to the accessory. The output buffer is kept
+ * between frames, so it only has to grow once. Encode time and size of the
+ * last frame are kept for measurements.
+ */
+public abstract class FrameEncoder {
+
+    private static final String TAG = "SMT/FrameEncoder";
+
+    /**
+     * Initial buffer size, enough for a typical 128x128 frame.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+
+    private long mLastEncodeTime;
+
+    private int mLastEncodedSize;
+
+    /**
+     * Encode a frame.
+     *
+     * @param bitmap The bitmap to encode.
+     * @return The encoded image data.
+     */
+    public final byte[] encode(final Bitmap bitmap) {
+        final long start = System.nanoTime();
+        mBuffer.reset();
+        try {
+            encode(bitmap, mBuffer);
+        } catch (IOException e) {
+            // Can't happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+        final byte[] data = mBuffer.toByteArray();
+        mLastEncodeTime = System.nanoTime() - start;
+        mLastEncodedSize = data.length;
+        if(BuildConfig.DEBUG) {
+            Log.v(TAG, getClass().getSimpleName() + " encoded " + bitmap.getWidth() + "x"
+                    + bitmap.getHeight() + " in " + (mLastEncodeTime / 1000) + "us, "
+                    + mLastEncodedSize + " bytes");
+        }
+        return data;
+    }
+
+    /**
+     * Write the encoded bitmap to the stream.
+     *
+     * @param bitmap The bitmap to encode.
+     * @param out The stream to write to.
+     * @throws IOException If writing fails.
+     */
+    protected abstract void encode(Bitmap bitmap, ByteArrayOutputStream out) throws IOException;
+
+    /**
+     * Get the time it took to encode the last frame.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getLastEncodeTime() {
+        return mLastEncodeTime;
+    }
+
+    /**
+     * Get the size of the last encoded frame.
+     *
+     * @return The size in bytes.
+     */
+    public int getLastEncodedSize() {
+        return mLastEncodedSize;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Gets a position for the station search as quickly as possible. A recent and accurate enough
+ * last known location is handed out right away, a live fix then only replaces it if we moved
+ * far enough to see other stations. Gives up after a fixed time.
+ */
+public class LocationStrategy {
+
+    private static final String TAG = "SMT/LocationStrategy";
+
+    //budget for using the last known location
+    private static final long MAX_LAST_KNOWN_AGE = 2 * 60 * 1000;
+    private static final float MAX_LAST_KNOWN_ACCURACY = 500;
+    //the nearby stations hardly change below this
+    private static final float MIN_REFINE_DISTANCE = 250;
+    private static final long TIMEOUT = 20 * 1000;
+
+    interface Callback {
+        /**
+         * @param refined true if this replaces a location delivered before
+         */
+        public void onLocation(Location location, boolean refined);
+        public void onLocationTimeout();
+    }
+
+    private final LocationManager mLocationManager;
+    private final Handler mHandler;
+    private Callback mCallback;
+    private Location mDelivered;
+    private boolean mListening = false;
+
+    public LocationStrategy(LocationManager locationManager, Handler handler) {
+        this.mLocationManager = locationManager;
+        this.mHandler = handler;
+    }
+
+    /**
+     * Starts locating, stops a running attempt first.
+     *
+     * @return false if no location provider is enabled
+     */
+    public boolean start(Callback callback) {
+        stop();
+        final String provider;
+        if(mLocationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER))
+            provider = LocationManager.NETWORK_PROVIDER;
+        else if(mLocationManager.isProviderEnabled(LocationManager.GPS_PROVIDER))
+            provider = LocationManager.GPS_PROVIDER;
+        else
+            return false;
+
+        mCallback = callback;
+        mDelivered = null;
+        mListening = true;
+        mLocationManager.requestLocationUpdates(provider, 0, 0, mLocationListener);
+        mHandler.postDelayed(mTimeout, TIMEOUT);
+
+        final Location lastKnown = bestLastKnownLocation();
+        if(lastKnown != null)
+        {
+            if(BuildConfig.DEBUG)
+                Log.d(TAG, "using last known location "+lastKnown);
+            mDelivered = lastKnown;
+            callback.onLocation(lastKnown, false);
+        }
+        return true;
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mTimeout);
+        if(mListening)
+        {
+            mLocationManager.removeUpdates(mLocationListener);
+            mListening = false;
+        }
+    }
+
+    private Location bestLastKnownLocation() {
+        final long now = System.currentTimeMillis();
+        Location best = null;
+        for (String provider : new String[]{LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER, LocationManager.PASSIVE_PROVIDER}) {
+            final Location location;
+            try {
+                location = mLocationManager.getLastKnownLocation(provider);
+            } catch (IllegalArgumentException e) {
+                continue; //provider not available on this device
+            }
+            if(location == null || now - location.getTime() > MAX_LAST_KNOWN_AGE)
+                continue;
+            if(!location.hasAccuracy() || location.getAccuracy() > MAX_LAST_KNOWN_ACCURACY)
+                continue;
+            if(best == null || location.getAccuracy() < best.getAccuracy())
+                best = location;
+        }
+        return best;
+    }
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            final boolean delivered = mDelivered != null;
+            stop();
+            if(BuildConfig.DEBUG)
+                Log.d(TAG, "timeout, delivered a location before: "+delivered);
+            if(!delivered && mCallback != null)
+                mCallback.onLocationTimeout();
+        }
+    };
+
+    private final LocationListener mLocationListener = new LocationListener() {
+
+        public void onLocationChanged(Location location) {
+            if(BuildConfig.DEBUG)
+                Log.v(TAG, "got location: "+location);
+            final Location delivered = mDelivered;
+            stop();
+            if(delivered == null)
+            {
+                mDelivered = location;
+                mCallback.onLocation(location, false);
+            }
+            else if(delivered.distanceTo(location) > MIN_REFINE_DISTANCE)
+            {
+                mDelivered = location;
+                mCallback.onLocation(location, true);
+            }
+        }
+
+        public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+        public void onProviderEnabled(String provider) {}
+
+        public void onProviderDisabled(String provider) {}
+    };
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import android.os.Handler;
+
+/**
+ * Calls back right after every full minute of the wall clock, that is when the departure
+ * countdowns change. Departure times are full minutes, so ticking in between would not change anything.
+ */
+public class MinuteTicker {
+
+    private static final long MINUTE = 60 * 1000;
+    //don't fire a few ms early because of scheduling jitter
+    private static final long SLACK = 50;
+
+    interface Listener {
+        public void onMinuteTick();
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private boolean mRunning = false;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if(!mRunning)
+                return;
+            mListener.onMinuteTick();
+            scheduleNext();
+        }
+    };
+
+    public MinuteTicker(Handler handler, Listener listener) {
+        this.mHandler = handler;
+        this.mListener = listener;
+    }
+
+    public void start() {
+        if(mRunning)
+            return;
+        mRunning = true;
+        scheduleNext();
+    }
+
+    public void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mTick);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    private void scheduleNext() {
+        final long now = System.currentTimeMillis();
+        mHandler.postDelayed(mTick, MINUTE - (now % MINUTE) + SLACK);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.cirrus.mobi.smarttransport.util.GeoHash;
+
+import android.content.Context;
+import android.util.Log;
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+
+/**
+ * Disk cache of nearby station lookups. Positions are quantized into geohash cells, so searching
+ * again from home, the office or a regular stop hits the same file. Stations hardly ever move,
+ * entries are reused for days and older ones still serve as a fallback when we are offline.
+ */
+public class NearbyStationsCache {
+
+    private static final String TAG = "SMT/NearbyCache";
+    private static final String DIR_NAME = "nearby";
+    //~150m x 150m
+    private static final int GEOHASH_PRECISION = 7;
+
+    private static final long FRESH_AGE = 3 * 24 * 60 * 60 * 1000L;
+    private static final long MAX_AGE = 30 * 24 * 60 * 60 * 1000L;
+    private static final long MAX_SIZE = 512 * 1024;
+
+    private static NearbyStationsCache sInstance;
+
+    private final File mDir;
+
+    public static class Entry {
+        public final NearbyLocationsResult result;
+        public final long fetchTime;
+
+        Entry(NearbyLocationsResult result, long fetchTime) {
+            this.result = result;
+            this.fetchTime = fetchTime;
+        }
+
+        /**
+         * @return false if a new query should be made, the result is still fine as a fallback then
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() - fetchTime < FRESH_AGE;
+        }
+    }
+
+    NearbyStationsCache(File dir) {
+        this.mDir = dir;
+    }
+
+    public static synchronized NearbyStationsCache getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new NearbyStationsCache(new File(context.getApplicationContext().getCacheDir(), DIR_NAME));
+        return sInstance;
+    }
+
+    /**
+     * @return the cached stations around this position, or null
+     */
+    public synchronized Entry get(NetworkId networkId, double latitude, double longitude) {
+        final File file = fileFor(networkId, latitude, longitude);
+        if(!file.exists())
+            return null;
+        final long fetchTime = file.lastModified();
+        if(System.currentTimeMillis() - fetchTime > MAX_AGE)
+        {
+            file.delete();
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return new Entry((NearbyLocationsResult) in.readObject(), fetchTime);
+        } catch (Exception e) {
+            //unreadable, e.g. written by an older pte version
+            Log.w(TAG, "dropping cache file "+file.getName(), e);
+            file.delete();
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    public synchronized void put(NetworkId networkId, double latitude, double longitude, NearbyLocationsResult result) {
+        if(result == null || result.status != NearbyLocationsResult.Status.OK)
+            return;
+        if(!mDir.exists() && !mDir.mkdirs())
+            return;
+        final File file = fileFor(networkId, latitude, longitude);
+        final File tmp = new File(mDir, file.getName() + ".tmp");
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeObject(result);
+            out.close();
+            out = null;
+            if(!tmp.renameTo(file))
+                tmp.delete();
+        } catch (IOException e) {
+            Log.w(TAG, "could not write "+file.getName(), e);
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+        trim();
+    }
+
+    /**
+     * Drops expired files, then the oldest ones until we are below the size limit.
+     */
+    private void trim() {
+        final File[] files = mDir.listFiles();
+        if(files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        final long now = System.currentTimeMillis();
+        long size = 0;
+        //newest first
+        for (File file : files) {
+            size += file.length();
+            if(size > MAX_SIZE || now - file.lastModified() > MAX_AGE)
+            {
+                if(BuildConfig.DEBUG)
+                    Log.v(TAG, "evicting "+file.getName());
+                size -= file.length();
+                file.delete();
+            }
+        }
+    }
+
+    private File fileFor(NetworkId networkId, double latitude, double longitude) {
+        return new File(mDir, networkId + "_" + GeoHash.encode(latitude, longitude, GEOHASH_PRECISION));
+    }
+
+    private static void close(Closeable closeable) {
+        if(closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+}
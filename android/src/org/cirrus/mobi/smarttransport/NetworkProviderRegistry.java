@@ -0,0 +1,116 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import org.acra.ACRA;
+
+import de.schildbach.pte.NetworkProvider;
+
+/**
+ * Creates every NetworkProvider once per process and keeps it together with its network name.
+ * Providers are stateless between queries, so all sessions, the prefetcher and the pebble
+ * service share the same instance.
+ */
+public class NetworkProviderRegistry {
+
+    private static final String TAG = "SMT/ProviderRegistry";
+    private static final String PACKAGE = Constants.PACKAGE;
+
+    public static class Entry {
+        public final String providerClass;
+        public final NetworkProvider provider;
+        public final String network;
+
+        Entry(String providerClass, NetworkProvider provider, String network) {
+            this.providerClass = providerClass;
+            this.provider = provider;
+            this.network = network;
+        }
+    }
+
+    private static NetworkProviderRegistry sInstance;
+
+    private final Context mContext;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    private NetworkProviderRegistry(Context context) {
+        this.mContext = context.getApplicationContext();
+    }
+
+    public static synchronized NetworkProviderRegistry getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new NetworkProviderRegistry(context);
+        return sInstance;
+    }
+
+    /**
+     * @return the provider and its network name, created on first use. The provider is null if
+     * the class could not be instantiated, that is reported once.
+     */
+    public synchronized Entry get(String providerClass) {
+        Entry entry = mEntries.get(providerClass);
+        if(entry == null)
+        {
+            entry = new Entry(providerClass, createProvider(providerClass), ProviderCatalogue.getInstance(mContext).getNetwork(providerClass));
+            mEntries.put(providerClass, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Creates the provider on a background thread, the first session then finds it ready.
+     */
+    public void warm(final String providerClass) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                get(providerClass);
+            }
+        }, "SMT/WarmProvider").start();
+    }
+
+    private NetworkProvider createProvider(String providerClass) {
+        if(BuildConfig.DEBUG)
+            Log.v(TAG, "Loading class: " + providerClass);
+        try {
+            final Class<?> clazz = Class.forName(PACKAGE + providerClass);
+            //most providers have a default constructor, some want an api key we don't have
+            Constructor<?> constructor;
+            try {
+                constructor = clazz.getConstructor();
+                return (NetworkProvider) constructor.newInstance();
+            } catch (NoSuchMethodException e) {
+                constructor = clazz.getConstructor(String.class);
+                return (NetworkProvider) constructor.newInstance("");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not load networkprovider "+providerClass, e);
+            ACRA.getErrorReporter().putCustomData("providerClass", providerClass);
+            ACRA.getErrorReporter().handleException(e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import android.graphics.Bitmap;
+
+/**
+ * Encodes frames as palette based PNG. Accessory screens mostly show a few
+ * flat colours, so one byte or less per pixel is enough and compresses much
+ * better than the true colour PNG from the platform encoder. Frames with more
+ * than 256 colours can optionally be reduced to 4 bits per channel, if that is
+ * still too many colours the fallback encoder is used.
+ */
+public class PaletteFrameEncoder extends FrameEncoder {
+
+    private static final int MAX_COLORS = 256;
+
+    /**
+     * Size of the colour lookup table, a power of two well above
+     * {@link #MAX_COLORS}.
+     */
+    private static final int HASH_BITS = 10;
+
+    private static final int HASH_SIZE = 1 << HASH_BITS;
+
+    private static final byte[] SIGNATURE = {
+            (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    private static final byte[] IHDR = {
+            'I', 'H', 'D', 'R'
+    };
+
+    private static final byte[] PLTE = {
+            'P', 'L', 'T', 'E'
+    };
+
+    private static final byte[] IDAT = {
+            'I', 'D', 'A', 'T'
+    };
+
+    private static final byte[] IEND = {
+            'I', 'E', 'N', 'D'
+    };
+
+    private static final int COLOR_TYPE_INDEXED = 3;
+
+    private final boolean mQuantize;
+
+    private final FrameEncoder mFallback;
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+
+    private final CRC32 mCrc = new CRC32();
+
+    private final byte[] mDeflateBuffer = new byte[4096];
+
+    private final DataBuffer mIdat = new DataBuffer(8 * 1024);
+
+    private final byte[] mHeader = new byte[13];
+
+    private final byte[] mPaletteData = new byte[MAX_COLORS * 3];
+
+    private final int[] mHashKeys = new int[HASH_SIZE];
+
+    /**
+     * Palette index + 1, 0 marks an empty slot.
+     */
+    private final int[] mHashValues = new int[HASH_SIZE];
+
+    private final int[] mPalette = new int[MAX_COLORS];
+
+    private int mPaletteSize;
+
+    private int[] mPixels = new int[0];
+
+    private byte[] mScanlines = new byte[0];
+
+    /**
+     * Create palette encoder with PNG as fallback.
+     *
+     * @param quantize True to reduce frames with too many colours to 4 bits
+     *            per channel, false to keep all frames lossless.
+     */
+    public PaletteFrameEncoder(final boolean quantize) {
+        this(quantize, new PngFrameEncoder());
+    }
+
+    /**
+     * Create palette encoder.
+     *
+     * @param quantize True to reduce frames with too many colours to 4 bits
+     *            per channel, false to keep all frames lossless.
+     * @param fallback Encoder for frames with too many colours.
+     */
+    public PaletteFrameEncoder(final boolean quantize, final FrameEncoder fallback) {
+        mQuantize = quantize;
+        mFallback = fallback;
+    }
+
+    @Override
+    protected void encode(final Bitmap bitmap, final ByteArrayOutputStream out) throws IOException {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int count = width * height;
+        if(mPixels.length < count) {
+            mPixels = new int[count];
+        }
+        bitmap.getPixels(mPixels, 0, width, 0, 0, width, height);
+
+        boolean quantized = false;
+        if(!buildPalette(count, false)) {
+            if(!mQuantize || !buildPalette(count, true)) {
+                mFallback.encode(bitmap, out);
+                return;
+            }
+            quantized = true;
+        }
+
+        final int bitDepth = bitDepth(mPaletteSize);
+        final int scanlineLength = writeScanlines(width, height, bitDepth, quantized);
+
+        mDeflater.reset();
+        mDeflater.setInput(mScanlines, 0, scanlineLength);
+        mDeflater.finish();
+        mIdat.reset();
+        while (!mDeflater.finished()) {
+            final int length = mDeflater.deflate(mDeflateBuffer);
+            mIdat.write(mDeflateBuffer, 0, length);
+        }
+
+        out.write(SIGNATURE);
+        writeInt(mHeader, 0, width);
+        writeInt(mHeader, 4, height);
+        mHeader[8] = (byte)bitDepth;
+        mHeader[9] = COLOR_TYPE_INDEXED;
+        // Compression, filter and interlace method.
+        mHeader[10] = 0;
+        mHeader[11] = 0;
+        mHeader[12] = 0;
+        writeChunk(out, IHDR, mHeader, mHeader.length);
+        for (int i = 0; i < mPaletteSize; i++) {
+            final int color = mPalette[i];
+            mPaletteData[i * 3] = (byte)(color >> 16);
+            mPaletteData[i * 3 + 1] = (byte)(color >> 8);
+            mPaletteData[i * 3 + 2] = (byte)color;
+        }
+        writeChunk(out, PLTE, mPaletteData, mPaletteSize * 3);
+        writeChunk(out, IDAT, mIdat.getBuffer(), mIdat.size());
+        writeChunk(out, IEND, mHeader, 0);
+    }
+
+    /**
+     * Collect the colours of the frame.
+     *
+     * @return False if there are more than {@link #MAX_COLORS}.
+     */
+    private boolean buildPalette(final int count, final boolean quantize) {
+        Arrays.fill(mHashValues, 0);
+        mPaletteSize = 0;
+        int last = 0;
+        boolean hasLast = false;
+        for (int i = 0; i < count; i++) {
+            final int color = color(mPixels[i], quantize);
+            // Runs of the same colour are the common case.
+            if(hasLast && color == last) {
+                continue;
+            }
+            last = color;
+            hasLast = true;
+            if(indexOf(color) >= 0) {
+                continue;
+            }
+            if(mPaletteSize == MAX_COLORS) {
+                return false;
+            }
+            final int slot = emptySlot(color);
+            mHashKeys[slot] = color;
+            mPalette[mPaletteSize] = color;
+            mPaletteSize++;
+            mHashValues[slot] = mPaletteSize;
+        }
+        return true;
+    }
+
+    /**
+     * Write the filter type 0 scanlines of the palette indices.
+     *
+     * @return The number of bytes written.
+     */
+    private int writeScanlines(final int width, final int height, final int bitDepth,
+            final boolean quantize) {
+        final int rowBytes = (width * bitDepth + 7) / 8;
+        final int length = height * (rowBytes + 1);
+        if(mScanlines.length < length) {
+            mScanlines = new byte[length];
+        }
+        final int pixelsPerByte = 8 / bitDepth;
+        int pos = 0;
+        int pixel = 0;
+        for (int y = 0; y < height; y++) {
+            mScanlines[pos++] = 0;
+            int current = 0;
+            int filled = 0;
+            for (int x = 0; x < width; x++) {
+                current = (current << bitDepth) | indexOf(color(mPixels[pixel++], quantize));
+                filled++;
+                if(filled == pixelsPerByte) {
+                    mScanlines[pos++] = (byte)current;
+                    current = 0;
+                    filled = 0;
+                }
+            }
+            if(filled > 0) {
+                // Pad the last byte of the row.
+                mScanlines[pos++] = (byte)(current << (bitDepth * (pixelsPerByte - filled)));
+            }
+        }
+        return pos;
+    }
+
+    private int indexOf(final int color) {
+        int slot = hash(color);
+        while (mHashValues[slot] != 0) {
+            if(mHashKeys[slot] == color) {
+                return mHashValues[slot] - 1;
+            }
+            slot = (slot + 1) & (HASH_SIZE - 1);
+        }
+        return -1;
+    }
+
+    private int emptySlot(final int color) {
+        int slot = hash(color);
+        while (mHashValues[slot] != 0) {
+            slot = (slot + 1) & (HASH_SIZE - 1);
+        }
+        return slot;
+    }
+
+    private static int hash(final int color) {
+        return (color * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private static int color(final int pixel, final boolean quantize) {
+        if(!quantize) {
+            return pixel | 0xFF000000;
+        }
+        // Keep the upper 4 bits of each channel and repeat them in the lower
+        // ones, so black and white stay exact.
+        final int high = pixel & 0x00F0F0F0;
+        return high | (high >>> 4) | 0xFF000000;
+    }
+
+    private static int bitDepth(final int paletteSize) {
+        if(paletteSize <= 2) {
+            return 1;
+        } else if(paletteSize <= 4) {
+            return 2;
+        } else if(paletteSize <= 16) {
+            return 4;
+        }
+        return 8;
+    }
+
+    private void writeChunk(final ByteArrayOutputStream out, final byte[] type,
+            final byte[] data, final int length) {
+        writeInt(out, length);
+        mCrc.reset();
+        mCrc.update(type);
+        mCrc.update(data, 0, length);
+        out.write(type, 0, type.length);
+        out.write(data, 0, length);
+        writeInt(out, (int)mCrc.getValue());
+    }
+
+    private static void writeInt(final ByteArrayOutputStream out, final int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte)(value >>> 24);
+        buffer[offset + 1] = (byte)(value >>> 16);
+        buffer[offset + 2] = (byte)(value >>> 8);
+        buffer[offset + 3] = (byte)value;
+    }
+
+    /**
+     * Byte array stream that gives access to its buffer, to avoid copying the
+     * compressed data.
+     */
+    private static class DataBuffer extends ByteArrayOutputStream {
+
+        DataBuffer(final int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
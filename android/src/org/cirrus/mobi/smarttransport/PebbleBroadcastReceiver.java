@@ -46,6 +46,8 @@ public class PebbleBroadcastReceiver extends BroadcastReceiver {
             Log.d(TAG, "sending Intent to service");
             PebbleKit.sendAckToPebble(context, transactionId);
             Intent intentService = new Intent(context, PebbleService.class);
+            intentService.putExtra(PebbleService.EXTRA_JSON, jsonData);
+            intentService.putExtra(PebbleService.EXTRA_TRANSACTION_ID, transactionId);
             context.startService(intentService);
         }
     }
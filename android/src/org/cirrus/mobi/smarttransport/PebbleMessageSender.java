@@ -0,0 +1,180 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.getpebble.android.kit.PebbleKit;
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+/**
+ * Sends AppMessages to the watch app one at a time, its inbox only takes one message and nacks
+ * the next one as busy. An ack sends the next message, a nack or a missing ack sends it again after
+ * a short delay. A message failing too often drops the rest of its batch, the watch asks again.
+ * A new batch replaces what is still queued of the previous one. Everything runs on the main thread.
+ */
+public class PebbleMessageSender {
+
+    private static final String TAG = "SMT/PebbleSender";
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_DELAY = 250;
+    private static final long ACK_TIMEOUT = 5000;
+
+    private static PebbleMessageSender sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedList<Message> mQueue = new LinkedList<Message>();
+    private Message mInFlight;
+    private int mInFlightId;
+    //waiting before a retry, nothing goes out meanwhile
+    private boolean mBackingOff = false;
+    private int mNextTransactionId = 0;
+    private int mBatch = 0;
+
+    private static class Message {
+        final PebbleDictionary dictionary;
+        final int batch;
+        int attempts = 0;
+
+        Message(PebbleDictionary dictionary, int batch) {
+            this.dictionary = dictionary;
+            this.batch = batch;
+        }
+    }
+
+    private PebbleMessageSender(Context context) {
+        this.mContext = context.getApplicationContext();
+        PebbleKit.registerReceivedAckHandler(mContext, new PebbleKit.PebbleAckReceiver(Constants.PEBBLE_UUID) {
+            @Override
+            public void receiveAck(Context context, int transactionId) {
+                onAck(transactionId);
+            }
+        });
+        PebbleKit.registerReceivedNackHandler(mContext, new PebbleKit.PebbleNackReceiver(Constants.PEBBLE_UUID) {
+            @Override
+            public void receiveNack(Context context, int transactionId) {
+                onNack(transactionId);
+            }
+        });
+    }
+
+    public static synchronized PebbleMessageSender getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new PebbleMessageSender(context);
+        return sInstance;
+    }
+
+    /**
+     * Queues the messages, may be called from any thread.
+     */
+    public void send(final List<PebbleDictionary> messages) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //whatever is still queued is outdated now, a retry of it as well
+                mQueue.clear();
+                mHandler.removeCallbacks(mResume);
+                mBackingOff = false;
+                mBatch++;
+                for (PebbleDictionary dictionary : messages)
+                    mQueue.add(new Message(dictionary, mBatch));
+                pump();
+            }
+        });
+    }
+
+    private void pump() {
+        if(mInFlight != null || mBackingOff || mQueue.isEmpty())
+            return;
+        mInFlight = mQueue.removeFirst();
+        //the pebble app only keeps a byte of the transaction id
+        mInFlightId = mNextTransactionId;
+        mNextTransactionId = (mNextTransactionId + 1) & 0xff;
+        mInFlight.attempts++;
+        PebbleKit.sendDataToPebbleWithTransactionId(mContext, Constants.PEBBLE_UUID, mInFlight.dictionary, mInFlightId);
+        mHandler.postDelayed(mTimeoutCheck, ACK_TIMEOUT);
+    }
+
+    private void onAck(int transactionId) {
+        if(mInFlight == null || transactionId != mInFlightId)
+            return; //late ack of a message we gave up on
+        mHandler.removeCallbacks(mTimeoutCheck);
+        mInFlight = null;
+        pump();
+    }
+
+    private void onNack(int transactionId) {
+        if(mInFlight == null || transactionId != mInFlightId)
+            return;
+        mHandler.removeCallbacks(mTimeoutCheck);
+        final Message message = mInFlight;
+        mInFlight = null;
+        retry(message);
+    }
+
+    private void retry(Message message) {
+        if(message.attempts > MAX_RETRIES)
+        {
+            if(BuildConfig.DEBUG)
+                Log.d(TAG, "giving up on batch "+message.batch);
+            dropBatch(message.batch);
+            pump();
+            return;
+        }
+        //the watch is busy, give it a moment before trying again
+        mQueue.addFirst(message);
+        mBackingOff = true;
+        mHandler.postDelayed(mResume, RETRY_DELAY * message.attempts);
+    }
+
+    private void dropBatch(int batch) {
+        final Iterator<Message> it = mQueue.iterator();
+        while (it.hasNext()) {
+            if(it.next().batch == batch)
+                it.remove();
+        }
+    }
+
+    private final Runnable mResume = new Runnable() {
+        @Override
+        public void run() {
+            mBackingOff = false;
+            pump();
+        }
+    };
+
+    private final Runnable mTimeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            if(mInFlight == null)
+                return;
+            //no ack in time counts as a nack
+            final Message message = mInFlight;
+            mInFlight = null;
+            retry(message);
+        }
+    };
+}
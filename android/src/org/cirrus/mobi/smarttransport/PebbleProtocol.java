@@ -0,0 +1,112 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+/**
+ * AppMessage keys and values shared with the watch app, and the split of a departure board into
+ * messages that fit the watch's inbox.
+ *
+ * A board goes out in the DepartureBoard format: a MSG_STATION message with the station position,
+ * the board length and the first bytes, followed by MSG_DEPARTURES messages with the rest. Every
+ * message carries the offset of its bytes, so the watch can place parts arriving out of order.
+ */
+public class PebbleProtocol {
+
+    //watch -> phone
+    public static final int KEY_REQUEST = 0;
+    public static final int KEY_STATION_INDEX = 1;
+
+    public static final int REQUEST_NEARBY = 1;
+    public static final int REQUEST_FAVS = 2;
+
+    //phone -> watch
+    public static final int KEY_MSG_TYPE = 2;
+    public static final int KEY_STATION_COUNT = 3;
+    public static final int KEY_BOARD_LENGTH = 4;
+    public static final int KEY_BOARD_OFFSET = 5;
+    public static final int KEY_BOARD = 6;
+    public static final int KEY_ERROR = 7;
+
+    public static final int MSG_STATION = 1;
+    public static final int MSG_DEPARTURES = 2;
+    public static final int MSG_ERROR = 3;
+
+    public static final int ERROR_NO_PROVIDER = 1;
+    public static final int ERROR_NO_LOCATION = 2;
+    public static final int ERROR_NO_STATIONS = 3;
+    public static final int ERROR_NO_FAVS = 4;
+    public static final int ERROR_NETWORK = 5;
+
+    //the inbox size the watch app opens
+    public static final int MAX_MESSAGE_SIZE = 256;
+    //the most rows the watch keeps
+    public static final int MAX_ROWS = 20;
+
+    private static final int DICT_HEADER = 1;
+    //key, type and length of every tuple
+    private static final int TUPLE_HEADER = 7;
+
+    private PebbleProtocol() {
+    }
+
+    public static PebbleDictionary error(int error) {
+        final PebbleDictionary dictionary = new PebbleDictionary();
+        dictionary.addUint8(KEY_MSG_TYPE, (byte) MSG_ERROR);
+        dictionary.addUint8(KEY_ERROR, (byte) error);
+        return dictionary;
+    }
+
+    /**
+     * @return the messages in the order to send them
+     */
+    public static List<PebbleDictionary> encodeBoard(int stationIndex, int stationCount, DepartureBoard board) {
+        final byte[] data = board.encode();
+        final List<PebbleDictionary> messages = new ArrayList<PebbleDictionary>();
+
+        //type, index, count, length and offset before the bytes
+        final int firstChunk = MAX_MESSAGE_SIZE - DICT_HEADER - 3 * (TUPLE_HEADER + 1) - 2 * (TUPLE_HEADER + 2) - TUPLE_HEADER;
+        PebbleDictionary message = new PebbleDictionary();
+        message.addUint8(KEY_MSG_TYPE, (byte) MSG_STATION);
+        message.addUint8(KEY_STATION_INDEX, (byte) stationIndex);
+        message.addUint8(KEY_STATION_COUNT, (byte) stationCount);
+        message.addUint16(KEY_BOARD_LENGTH, (short) data.length);
+        message.addUint16(KEY_BOARD_OFFSET, (short) 0);
+        int offset = Math.min(firstChunk, data.length);
+        message.addBytes(KEY_BOARD, Arrays.copyOfRange(data, 0, offset));
+        messages.add(message);
+
+        //type and offset before the bytes
+        final int chunk = MAX_MESSAGE_SIZE - DICT_HEADER - (TUPLE_HEADER + 1) - (TUPLE_HEADER + 2) - TUPLE_HEADER;
+        while (offset < data.length) {
+            final int end = Math.min(offset + chunk, data.length);
+            message = new PebbleDictionary();
+            message.addUint8(KEY_MSG_TYPE, (byte) MSG_DEPARTURES);
+            message.addUint16(KEY_BOARD_OFFSET, (short) offset);
+            message.addBytes(KEY_BOARD, Arrays.copyOfRange(data, offset, end));
+            messages.add(message);
+            offset = end;
+        }
+        return messages;
+    }
+}
@@ -17,78 +17,327 @@
 
 package org.cirrus.mobi.smarttransport;
 
-import android.app.IntentService;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.location.LocationManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.json.JSONException;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
 import de.schildbach.pte.dto.NearbyLocationsResult;
 import de.schildbach.pte.dto.QueryDeparturesResult;
 
 /**
- * Created by dhelleberg on 12/06/15.
+ * Answers the requests of the Pebble app. Requests run one after another on a worker thread:
+ * stations and departures come from the caches if they are fresh, from the provider otherwise,
+ * the board then goes out through the PebbleMessageSender. The last board of every station is
+ * kept on disk for when we are offline.
+ *
+ * The watch sends requests in bursts while the user pages through stations, so the service stays
+ * around with the provider and the nearby stations at hand and only stops after some idle time.
  */
-public class PebbleService extends IntentService implements PublicNetworkProvider.ResultCallbacks {
+public class PebbleService extends Service {
 
-    private static final String TAG = "PebbleService";
-    private Context mContext = this;
-    private LocationManager locationManager;
-    private SharedPreferences mSharedPref;
+    private static final String TAG = "SMT/PebbleService";
+    public static final String EXTRA_JSON = "json";
+    public static final String EXTRA_TRANSACTION_ID = "transaction_id";
 
-    private String[] mProviderEntries;
-    private PublicTransportationAPI mPublicTransportationAPI;
+    private static final int MAX_STATIONS = 10;
+    private static final long LOCATION_TIMEOUT = 20 * 1000;
+    private static final long FAVS_TIMEOUT = 10 * 1000;
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+    //the user hardly moved to other stations meanwhile
+    private static final long NEARBY_REUSE = 2 * 60 * 1000;
 
-    public PebbleService() {
-        super("PebbleService");
-    }
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mWorkerThread;
+    private Handler mWorker;
+    private SharedPreferences mSharedPref;
+    private LocationStrategy mLocationStrategy;
+
+    //warm state, only touched on the worker thread
+    private String mProviderClass;
+    private NetworkProvider mProvider;
+    private List<Location> mNearbyStations;
+    private long mNearbyTime;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        locationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        mSharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+        mLocationStrategy = new LocationStrategy((LocationManager) getSystemService(Context.LOCATION_SERVICE), mMainHandler);
+        mWorkerThread = new HandlerThread("SMT/Pebble", Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mWorker = new Handler(mWorkerThread.getLooper());
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        if(intent != null)
+        {
+            mWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleRequest(intent);
+                }
+            });
+        }
+        mMainHandler.removeCallbacks(mIdleStop);
+        mMainHandler.postDelayed(mIdleStop, IDLE_TIMEOUT);
+        return START_NOT_STICKY;
+    }
 
-        mSharedPref = PreferenceManager.getDefaultSharedPreferences(mContext);
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
 
-        mProviderEntries = mContext.getResources().getStringArray(R.array.pref_transportNetwork_Entries);
+    @Override
+    public void onDestroy() {
+        mMainHandler.removeCallbacks(mIdleStop);
+        mLocationStrategy.stop();
+        mWorkerThread.quit();
+        super.onDestroy();
+    }
+
+    private final Runnable mIdleStop = new Runnable() {
+        @Override
+        public void run() {
+            if(BuildConfig.DEBUG)
+                Log.d(TAG, "idle, stopping");
+            stopSelf();
+        }
+    };
+
+    private void handleRequest(Intent intent) {
+        final String json = intent.getStringExtra(EXTRA_JSON);
+        if(BuildConfig.DEBUG)
+            Log.d(TAG, "request "+intent.getIntExtra(EXTRA_TRANSACTION_ID, -1)+": "+json);
+        if(json == null)
+            return;
+        final PebbleDictionary request;
+        try {
+            request = PebbleDictionary.fromJson(json);
+        } catch (JSONException e) {
+            Log.w(TAG, "malformed request", e);
+            return;
+        }
+        final PebbleMessageSender sender = PebbleMessageSender.getInstance(this);
 
-        mPublicTransportationAPI = new PublicTransportationAPI(this);
+        final String prefKey = getString(R.string.pref_publicnetwork);
+        if(!mSharedPref.contains(prefKey))
+        {
+            sender.send(Collections.singletonList(PebbleProtocol.error(PebbleProtocol.ERROR_NO_PROVIDER)));
+            return;
+        }
+        final String providerClass = mSharedPref.getString(prefKey, getString(R.string.pref_transportNetwork_default));
+        if(!providerClass.equals(mProviderClass))
+        {
+            //first request or the user picked another network
+            mProviderClass = providerClass;
+            mProvider = NetworkProviderRegistry.getInstance(this).get(providerClass).provider;
+            mNearbyStations = null;
+        }
+        final NetworkProvider provider = mProvider;
+        if(provider == null)
+        {
+            sender.send(Collections.singletonList(PebbleProtocol.error(PebbleProtocol.ERROR_NO_PROVIDER)));
+            return;
+        }
 
-        //detect not selected provider
-        if(!mSharedPref.contains(mContext.getResources().getString(R.string.pref_publicnetwork)))
+        final Long requestType = request.getUnsignedIntegerAsLong(PebbleProtocol.KEY_REQUEST);
+        final Long stationIndex = request.getUnsignedIntegerAsLong(PebbleProtocol.KEY_STATION_INDEX);
+        final List<Location> stations;
+        if(requestType != null && requestType == PebbleProtocol.REQUEST_FAVS)
         {
-//            selectProvider();
+            FavouritesRefresher.getInstance(this).recordUse();
+            stations = loadFavourites();
+            if(stations == null || stations.isEmpty())
+            {
+                sender.send(Collections.singletonList(PebbleProtocol.error(PebbleProtocol.ERROR_NO_FAVS)));
+                return;
+            }
+        }
+        else if(mNearbyStations != null && SystemClock.elapsedRealtime() - mNearbyTime < NEARBY_REUSE)
+        {
+            //paging through the stations of the last search
+            stations = mNearbyStations;
         }
         else
         {
-            //loadProvider from Preferences
-            String providerClass = mSharedPref.getString(mContext.getResources().getString(R.string.pref_publicnetwork), mContext.getResources().getString(R.string.pref_transportNetwork_default));
-            mPublicTransportationAPI.initNetworkProvider(this, providerClass);
-
-            //select mode
-            //selectMode();
-            //intial call, kick search
-            //startSearch();
+            final android.location.Location location = locate();
+            if(location == null)
+            {
+                sender.send(Collections.singletonList(PebbleProtocol.error(PebbleProtocol.ERROR_NO_LOCATION)));
+                return;
+            }
+            stations = nearbyStations(provider, location);
+            if(stations == null || stations.isEmpty())
+            {
+                sender.send(Collections.singletonList(PebbleProtocol.error(PebbleProtocol.ERROR_NO_STATIONS)));
+                return;
+            }
+            mNearbyStations = stations;
+            mNearbyTime = SystemClock.elapsedRealtime();
+        }
+
+        //the watch walks around the list like the SmartWatch does
+        final int index = (stationIndex != null ? stationIndex.intValue() : 0) % stations.size();
+        final Location station = stations.get(index);
+        final DepartureBoard board = departureBoard(provider, station);
+        if(board == null)
+        {
+            sender.send(Collections.singletonList(PebbleProtocol.error(PebbleProtocol.ERROR_NETWORK)));
+            return;
         }
+        sender.send(PebbleProtocol.encodeBoard(index, stations.size(), board));
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        Log.d(TAG, "got intent "+intent);
+    /**
+     * @return the board of the station, the last one on disk if the provider can't be reached
+     */
+    private DepartureBoard departureBoard(NetworkProvider provider, Location station) {
+        final DepartureBoardCache boardCache = DepartureBoardCache.getInstance(this);
+        final QueryDeparturesResult result = departures(provider, station);
+        if(result == null)
+            return boardCache.get(provider.id(), station.id);
+
+        final long now = System.currentTimeMillis();
+        List<Departure> upcoming = Departures.upcoming(result, now);
+        if(upcoming.size() > PebbleProtocol.MAX_ROWS)
+            upcoming = upcoming.subList(0, PebbleProtocol.MAX_ROWS);
+        final String name = station.uniqueShortName() != null ? station.uniqueShortName() : station.name;
+        final DepartureBoard board = DepartureBoard.create(name, upcoming, now);
+        boardCache.put(provider.id(), station.id, board);
+        return board;
     }
 
-    @Override
-    public void nearbyStationsReceived(NearbyLocationsResult result) {
+    private List<Location> nearbyStations(NetworkProvider provider, android.location.Location location) {
+        final NearbyStationsCache cache = NearbyStationsCache.getInstance(this);
+        final NearbyStationsCache.Entry cached = cache.get(provider.id(), location.getLatitude(), location.getLongitude());
+        if(cached != null && cached.isFresh())
+            return cached.result.locations;
+        try {
+            final Location pteLoc = new Location(LocationType.COORD, null, (int) (location.getLatitude() * 1E6), (int) (location.getLongitude() * 1E6));
+            final NearbyLocationsResult result = provider.queryNearbyLocations(EnumSet.of(LocationType.STATION), pteLoc, 0, MAX_STATIONS);
+            if(result.status == NearbyLocationsResult.Status.OK)
+            {
+                cache.put(provider.id(), location.getLatitude(), location.getLongitude(), result);
+                return result.locations;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "IOException fetching stations", e);
+        }
+        //old stations are better than none
+        return cached != null ? cached.result.locations : null;
+    }
 
+    private QueryDeparturesResult departures(NetworkProvider provider, Location station) {
+        final DepartureCache.Entry cached = DepartureCache.getInstance().get(provider.id(), station.id);
+        if(cached != null && cached.isFresh())
+            return cached.result;
+        try {
+            final QueryDeparturesResult result = provider.queryDepartures(station.id, new Date(), PebbleProtocol.MAX_ROWS, true);
+            DepartureCache.getInstance().put(provider.id(), station.id, result);
+            if(result.status == QueryDeparturesResult.Status.OK)
+                return result;
+        } catch (IOException e) {
+            Log.w(TAG, "IOException fetching departures", e);
+        }
+        return cached != null ? cached.result : null;
     }
 
-    @Override
-    public void departuresReceived(QueryDeparturesResult result) {
+    /**
+     * Waits for the first location the LocationStrategy comes up with, it runs on the main thread.
+     */
+    private android.location.Location locate() {
+        final LocationStrategy strategy = mLocationStrategy;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final android.location.Location[] location = new android.location.Location[1];
+        final LocationStrategy.Callback callback = new LocationStrategy.Callback() {
+            @Override
+            public void onLocation(android.location.Location fix, boolean refined) {
+                if(location[0] == null)
+                    location[0] = fix;
+                latch.countDown();
+            }
 
+            @Override
+            public void onLocationTimeout() {
+                latch.countDown();
+            }
+        };
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(!strategy.start(callback))
+                    latch.countDown();
+            }
+        });
+        try {
+            latch.await(LOCATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                strategy.stop();
+            }
+        });
+        return location[0];
+    }
+
+    /**
+     * Waits for the FavouritesCache, it lives on the main thread.
+     */
+    private List<Location> loadFavourites() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Location> favourites = new ArrayList<Location>();
+        final FavouritesCache.Listener listener = new FavouritesCache.Listener() {
+            @Override
+            public void favouritesLoaded(List<Location> loaded) {
+                favourites.addAll(loaded);
+                latch.countDown();
+            }
+        };
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                FavouritesCache.getInstance(PebbleService.this).load(listener);
+            }
+        });
+        try {
+            if(!latch.await(FAVS_TIMEOUT, TimeUnit.MILLISECONDS))
+                return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return favourites;
     }
 }
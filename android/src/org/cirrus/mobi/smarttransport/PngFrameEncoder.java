@@ -0,0 +1,35 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.io.ByteArrayOutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+/**
+ * Encodes frames as PNG using the platform encoder. PNG is lossless, the
+ * quality parameter is ignored.
+ */
+public class PngFrameEncoder extends FrameEncoder {
+
+    @Override
+    protected void encode(final Bitmap bitmap, final ByteArrayOutputStream out) {
+        bitmap.compress(CompressFormat.PNG, 100, out);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+
+/**
+ * Warms the caches when a watch connects: location, nearby stations and the departures of the
+ * first nearby stations and the favourites. Whatever mode the user picks then renders from
+ * the caches instead of waiting for the network.
+ */
+public class Prefetcher implements PublicNetworkProvider.ResultCallbacks {
+
+    private static final String TAG = "SMT/Prefetcher";
+    //connection changes and control starts come in bursts
+    private static final long MIN_INTERVAL = 2 * 60 * 1000;
+    private static final int PREFETCH_STATIONS = 3;
+    private static final int PREFETCH_FAVS = 5;
+
+    private static Prefetcher sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private long mLastPrefetch = -MIN_INTERVAL;
+    private PublicNetworkProvider mPublicNetworkProvider;
+    private LocationStrategy mLocationStrategy;
+
+    private Prefetcher(Context context) {
+        this.mContext = context.getApplicationContext();
+    }
+
+    public static synchronized Prefetcher getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new Prefetcher(context);
+        return sInstance;
+    }
+
+    /**
+     * Starts prefetching unless we did so recently. Call on the main thread.
+     */
+    public void prefetch() {
+        final long now = SystemClock.elapsedRealtime();
+        if(now - mLastPrefetch < MIN_INTERVAL)
+            return;
+
+        final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext);
+        final String prefKey = mContext.getResources().getString(R.string.pref_publicnetwork);
+        if(!sharedPref.contains(prefKey))
+            return; //no provider selected yet, nothing we could fetch
+        mLastPrefetch = now;
+        if(BuildConfig.DEBUG)
+            Log.d(TAG, "prefetching");
+
+        final String providerClass = sharedPref.getString(prefKey, mContext.getResources().getString(R.string.pref_transportNetwork_default));
+        mPublicNetworkProvider = new PublicTransportationAPI(mContext).initNetworkProvider(this, providerClass);
+
+        FavouritesCache.getInstance(mContext).load(mFavouritesListener);
+
+        if(mLocationStrategy == null)
+            mLocationStrategy = new LocationStrategy((LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE), mHandler);
+        mLocationStrategy.start(mLocationCallback);
+    }
+
+    private final LocationStrategy.Callback mLocationCallback = new LocationStrategy.Callback() {
+        @Override
+        public void onLocation(Location location, boolean refined) {
+            mPublicNetworkProvider.getNearbyStations(location);
+        }
+
+        @Override
+        public void onLocationTimeout() {
+        }
+    };
+
+    private final FavouritesCache.Listener mFavouritesListener = new FavouritesCache.Listener() {
+        @Override
+        public void favouritesLoaded(List<de.schildbach.pte.dto.Location> favourites) {
+            final int count = Math.min(PREFETCH_FAVS, favourites.size());
+            for (int i = 0; i < count; i++)
+                mPublicNetworkProvider.getDepatures(favourites.get(i));
+        }
+    };
+
+    @Override
+    public void nearbyStationsReceived(NearbyLocationsResult result) {
+        //the stations went into the disk cache already, warm the departures of the first ones
+        if(result == null || result.locations == null)
+            return;
+        final int count = Math.min(PREFETCH_STATIONS, result.locations.size());
+        for (int i = 0; i < count; i++)
+            mPublicNetworkProvider.getDepatures(result.locations.get(i));
+    }
+
+    @Override
+    public void departuresReceived(de.schildbach.pte.dto.Location station, QueryDeparturesResult result) {
+        //nothing to do, the result is in the DepartureCache
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.NetworkProvider.Capability;
+
+/**
+ * The providers we offer, read from the resource arrays once. The arrays pref_transportNetwork_values,
+ * pref_transportNetwork_Entries and pref_transportNetwork_bounds are aligned by index.
+ */
+public class ProviderCatalogue {
+
+    public static class ProviderInfo {
+        public final int index;
+        public final String providerClass;
+        public final String network;
+        //rough region the provider covers, in degrees
+        public final double minLat, minLon, maxLat, maxLon;
+        private Set<Capability> capabilities;
+
+        ProviderInfo(int index, String providerClass, String network, String bounds) {
+            this.index = index;
+            this.providerClass = providerClass;
+            this.network = network;
+            final String[] parts = bounds.split(",");
+            this.minLat = Double.parseDouble(parts[0].trim());
+            this.minLon = Double.parseDouble(parts[1].trim());
+            this.maxLat = Double.parseDouble(parts[2].trim());
+            this.maxLon = Double.parseDouble(parts[3].trim());
+        }
+
+        public boolean contains(double lat, double lon) {
+            return lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon;
+        }
+    }
+
+    private static ProviderCatalogue sInstance;
+
+    private final Context mContext;
+    private final List<ProviderInfo> mProviders;
+    private final HashMap<String, ProviderInfo> mByClass = new HashMap<String, ProviderInfo>();
+    private final HashMap<String, ProviderInfo> mByNetwork = new HashMap<String, ProviderInfo>();
+
+    private ProviderCatalogue(Context context) {
+        this.mContext = context.getApplicationContext();
+        final Resources resources = mContext.getResources();
+        final String[] values = resources.getStringArray(R.array.pref_transportNetwork_values);
+        final String[] entries = resources.getStringArray(R.array.pref_transportNetwork_Entries);
+        final String[] bounds = resources.getStringArray(R.array.pref_transportNetwork_bounds);
+        if(values.length != entries.length || values.length != bounds.length)
+            throw new IllegalStateException("provider arrays are not aligned");
+
+        final List<ProviderInfo> providers = new ArrayList<ProviderInfo>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            final ProviderInfo info = new ProviderInfo(i, values[i], entries[i], bounds[i]);
+            providers.add(info);
+            mByClass.put(info.providerClass, info);
+            mByNetwork.put(info.network, info);
+        }
+        mProviders = Collections.unmodifiableList(providers);
+    }
+
+    public static synchronized ProviderCatalogue getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new ProviderCatalogue(context);
+        return sInstance;
+    }
+
+    public int size() {
+        return mProviders.size();
+    }
+
+    public ProviderInfo get(int index) {
+        return mProviders.get(index);
+    }
+
+    /**
+     * @return all providers in the order of the preference list
+     */
+    public List<ProviderInfo> getAll() {
+        return mProviders;
+    }
+
+    /**
+     * @return the provider, null if we don't offer this class
+     */
+    public ProviderInfo byClass(String providerClass) {
+        return mByClass.get(providerClass);
+    }
+
+    /**
+     * @return the provider, null if there is none with this name
+     */
+    public ProviderInfo byNetwork(String network) {
+        return mByNetwork.get(network);
+    }
+
+    /**
+     * @return the network name, the class name if we don't know the provider
+     */
+    public String getNetwork(String providerClass) {
+        final ProviderInfo info = mByClass.get(providerClass);
+        return info != null ? info.network : providerClass;
+    }
+
+    /**
+     * The capabilities need a provider instance, so they are only looked up on first use.
+     *
+     * @return the capabilities, empty if the provider can't be created
+     */
+    public Set<Capability> getCapabilities(ProviderInfo info) {
+        synchronized (info) {
+            if(info.capabilities == null)
+            {
+                final EnumSet<Capability> capabilities = EnumSet.noneOf(Capability.class);
+                final NetworkProvider provider = NetworkProviderRegistry.getInstance(mContext).get(info.providerClass).provider;
+                if(provider != null)
+                {
+                    for (Capability capability : Capability.values()) {
+                        if(provider.hasCapabilities(capability))
+                            capabilities.add(capability);
+                    }
+                }
+                info.capabilities = Collections.unmodifiableSet(capabilities);
+            }
+            return info.capabilities;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.Context;
+import android.util.SparseArray;
+
+import org.cirrus.mobi.smarttransport.ProviderCatalogue.ProviderInfo;
+
+/**
+ * Grid over the provider regions of the ProviderCatalogue, one degree per cell. A cell lists the
+ * providers whose region overlaps it, so finding the providers for a position only checks a few
+ * candidates.
+ */
+public class ProviderCoverageIndex {
+
+    private static final int CELLS_PER_DEGREE = 1;
+    private static final int LON_CELLS = 360 * CELLS_PER_DEGREE;
+
+    private static ProviderCoverageIndex sInstance;
+
+    private final List<ProviderInfo> mProviders;
+    private final SparseArray<List<ProviderInfo>> mCells = new SparseArray<List<ProviderInfo>>();
+
+    private ProviderCoverageIndex(List<ProviderInfo> providers) {
+        this.mProviders = providers;
+        for (ProviderInfo info : providers) {
+            for (int latCell = latCell(info.minLat); latCell <= latCell(info.maxLat); latCell++) {
+                for (int lonCell = lonCell(info.minLon); lonCell <= lonCell(info.maxLon); lonCell++) {
+                    final int key = latCell * LON_CELLS + lonCell;
+                    List<ProviderInfo> cell = mCells.get(key);
+                    if(cell == null)
+                    {
+                        cell = new ArrayList<ProviderInfo>(2);
+                        mCells.put(key, cell);
+                    }
+                    cell.add(info);
+                }
+            }
+        }
+    }
+
+    public static synchronized ProviderCoverageIndex getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new ProviderCoverageIndex(ProviderCatalogue.getInstance(context).getAll());
+        return sInstance;
+    }
+
+    /**
+     * @return all providers, those covering the position first with the most local one leading,
+     * then the others by distance
+     */
+    public List<ProviderInfo> rank(final double lat, final double lon) {
+        final List<ProviderInfo> covering = new ArrayList<ProviderInfo>();
+        final List<ProviderInfo> cell = mCells.get(latCell(lat) * LON_CELLS + lonCell(lon));
+        if(cell != null)
+        {
+            for (ProviderInfo info : cell) {
+                if(info.contains(lat, lon))
+                    covering.add(info);
+            }
+        }
+        //a city network knows its stops better than the national one
+        Collections.sort(covering, new Comparator<ProviderInfo>() {
+            @Override
+            public int compare(ProviderInfo lhs, ProviderInfo rhs) {
+                return Double.compare(area(lhs), area(rhs));
+            }
+        });
+
+        final List<ProviderInfo> others = new ArrayList<ProviderInfo>(mProviders.size());
+        for (ProviderInfo info : mProviders) {
+            if(!covering.contains(info))
+                others.add(info);
+        }
+        final double lonScale = Math.cos(Math.toRadians(lat));
+        Collections.sort(others, new Comparator<ProviderInfo>() {
+            @Override
+            public int compare(ProviderInfo lhs, ProviderInfo rhs) {
+                return Double.compare(distance(lhs, lat, lon, lonScale), distance(rhs, lat, lon, lonScale));
+            }
+        });
+
+        covering.addAll(others);
+        return covering;
+    }
+
+    private static int latCell(double lat) {
+        return (int) Math.floor((Math.max(-90, Math.min(89.999, lat)) + 90) * CELLS_PER_DEGREE);
+    }
+
+    private static int lonCell(double lon) {
+        return (int) Math.floor((Math.max(-180, Math.min(179.999, lon)) + 180) * CELLS_PER_DEGREE);
+    }
+
+    private static double area(ProviderInfo info) {
+        return (info.maxLat - info.minLat) * (info.maxLon - info.minLon);
+    }
+
+    /**
+     * @return squared distance in degrees to the region, good enough for ordering
+     */
+    private static double distance(ProviderInfo info, double lat, double lon, double lonScale) {
+        final double dLat = Math.max(0, Math.max(info.minLat - lat, lat - info.maxLat));
+        final double dLon = Math.max(0, Math.max(info.minLon - lon, lon - info.maxLon)) * lonScale;
+        return dLat * dLat + dLon * dLon;
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.util.Log;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.NetworkProvider.Capability;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.ResultHeader;
+import de.schildbach.pte.dto.StationDepartures;
+
+/**
+ * Asks the providers of neighbouring networks along with the selected one, close to a network
+ * border a single provider only knows part of the stops. All of them are queried in parallel and get
+ * a fixed latency budget, whatever did not arrive by then or failed is left out. The selected
+ * provider is only waited for beyond that if no other one answered.
+ *
+ * Stations found by several providers are merged by name and position, their departures are then
+ * queried from all of them. The routes to the providers knowing a station outlive the search, the
+ * station may come back from an earlier search or as a favourite. They are kept process wide and on
+ * disk, for the most recently used stations.
+ */
+public class ProviderFanOut {
+
+    private static final String TAG = "SMT/FanOut";
+    private static final int MAX_SECONDARY = 2;
+    private static final long LATENCY_BUDGET = 4000;
+    //stops of the same name this close are the same station
+    private static final float SAME_STATION_DISTANCE = 150;
+
+    private static final String ROUTES_PREFS = "fanout_routes";
+    private static final String ROUTES_KEY = "routes";
+    private static final int MAX_ROUTES = 256;
+    //the provider class of a route to the selected provider, whichever it is
+    private static final String PRIMARY = "";
+
+    //network:station id -> the providers knowing the station and their ids for it, missing for stations only
+    //the primary provider knows. Every session has its own fan-out, so this one is shared.
+    private static LinkedHashMap<String, List<Route>> sRoutes;
+    //the selected provider's queries. The caller already runs on that provider's executor and waits for the
+    //result, queued there a query could wait behind its own caller. The callers keep it within the limit.
+    private static final ExecutorService sPrimaryExecutor = Executors.newCachedThreadPool();
+
+    private final Context mContext;
+    private final NetworkProvider mPrimary;
+
+    private static class Route {
+        final String providerClass;
+        final String stationId;
+
+        Route(String providerClass, String stationId) {
+            this.providerClass = providerClass;
+            this.stationId = stationId;
+        }
+    }
+
+    public ProviderFanOut(Context context, NetworkProvider primary) {
+        this.mContext = context.getApplicationContext();
+        this.mPrimary = primary;
+    }
+
+    public NearbyLocationsResult queryNearbyLocations(final EnumSet<LocationType> types, final Location location,
+            final int maxDistance, final int maxLocations) throws IOException {
+        final List<String> secondary = secondaryProviders(location.lat / 1E6, location.lon / 1E6);
+        if(secondary.isEmpty())
+            return mPrimary.queryNearbyLocations(types, location, maxDistance, maxLocations);
+        final List<FutureTask<NearbyLocationsResult>> tasks = new ArrayList<FutureTask<NearbyLocationsResult>>(secondary.size());
+        for (String providerClass : secondary) {
+            final NetworkProvider provider = provider(providerClass);
+            tasks.add(submit(provider, new Callable<NearbyLocationsResult>() {
+                @Override
+                public NearbyLocationsResult call() throws Exception {
+                    return provider.queryNearbyLocations(types, location, maxDistance, maxLocations);
+                }
+            }));
+        }
+        final FutureTask<NearbyLocationsResult> primaryTask = submitPrimary(new Callable<NearbyLocationsResult>() {
+            @Override
+            public NearbyLocationsResult call() throws Exception {
+                return mPrimary.queryNearbyLocations(types, location, maxDistance, maxLocations);
+            }
+        });
+        final long deadline = System.currentTimeMillis() + LATENCY_BUDGET;
+        final List<NearbyLocationsResult> results = new ArrayList<NearbyLocationsResult>(tasks.size());
+        boolean answered = false;
+        for (FutureTask<NearbyLocationsResult> task : tasks) {
+            final NearbyLocationsResult result = collect(task, deadline);
+            results.add(result);
+            answered |= result != null && result.status == NearbyLocationsResult.Status.OK;
+        }
+        final NearbyLocationsResult primary = collectPrimary(primaryTask, deadline, !answered);
+
+        final List<Location> merged = new ArrayList<Location>();
+        final HashMap<String, List<Route>> routes = new HashMap<String, List<Route>>();
+        ResultHeader header = null;
+        if(primary != null)
+        {
+            header = primary.header;
+            if(primary.status == NearbyLocationsResult.Status.OK)
+                merged.addAll(primary.locations);
+        }
+        for (int i = 0; i < results.size(); i++) {
+            final NearbyLocationsResult result = results.get(i);
+            if(result == null || result.status != NearbyLocationsResult.Status.OK)
+                continue;
+            if(header == null)
+                header = result.header;
+            final String providerClass = secondary.get(i);
+            for (Location station : result.locations) {
+                final Location same = findSameStation(merged, station);
+                if(same != null)
+                {
+                    //stations added by a secondary provider have their route already
+                    if(!routes.containsKey(same.id))
+                        addRoute(routes, same.id, PRIMARY, same.id);
+                    addRoute(routes, same.id, providerClass, station.id);
+                }
+                else if(!containsId(merged, station.id)) //ids of different providers may clash, can't tell them apart then
+                {
+                    merged.add(station);
+                    addRoute(routes, station.id, providerClass, station.id);
+                }
+            }
+        }
+        putRoutes(routes);
+        if(primary != null && primary.status != NearbyLocationsResult.Status.OK && merged.isEmpty())
+            return primary;
+
+        sortByDistance(merged, location);
+        if(merged.size() > maxLocations && maxLocations > 0)
+            merged.subList(maxLocations, merged.size()).clear();
+        return new NearbyLocationsResult(header, merged);
+    }
+
+    public QueryDeparturesResult queryDepartures(final String stationId, final Date time, final int maxDepartures,
+            final boolean equivs) throws IOException {
+        final List<Route> routes = getRoutes(stationId);
+        if(routes == null)
+            return mPrimary.queryDepartures(stationId, time, maxDepartures, equivs);
+
+        final List<FutureTask<QueryDeparturesResult>> tasks = new ArrayList<FutureTask<QueryDeparturesResult>>(routes.size());
+        Route primaryRoute = null;
+        for (final Route route : routes) {
+            if(PRIMARY.equals(route.providerClass))
+            {
+                primaryRoute = route;
+                continue;
+            }
+            final NetworkProvider provider = provider(route.providerClass);
+            if(provider == null)
+                continue;
+            tasks.add(submit(provider, new Callable<QueryDeparturesResult>() {
+                @Override
+                public QueryDeparturesResult call() throws Exception {
+                    return provider.queryDepartures(route.stationId, time, maxDepartures, equivs);
+                }
+            }));
+        }
+        if(primaryRoute != null && tasks.isEmpty())
+            return mPrimary.queryDepartures(primaryRoute.stationId, time, maxDepartures, equivs);
+        FutureTask<QueryDeparturesResult> primaryTask = null;
+        if(primaryRoute != null)
+        {
+            final String primaryStationId = primaryRoute.stationId;
+            primaryTask = submitPrimary(new Callable<QueryDeparturesResult>() {
+                @Override
+                public QueryDeparturesResult call() throws Exception {
+                    return mPrimary.queryDepartures(primaryStationId, time, maxDepartures, equivs);
+                }
+            });
+        }
+        final long deadline = System.currentTimeMillis() + LATENCY_BUDGET;
+        QueryDeparturesResult merged = null;
+        for (FutureTask<QueryDeparturesResult> task : tasks) {
+            final QueryDeparturesResult result = collect(task, deadline);
+            if(result == null || result.status != QueryDeparturesResult.Status.OK)
+                continue;
+            if(merged == null)
+                merged = result;
+            else
+                merged = mergeDepartures(merged, result);
+        }
+        if(primaryTask != null)
+        {
+            final QueryDeparturesResult primary = collectPrimary(primaryTask, deadline, merged == null);
+            //the selected provider's platforms come first
+            if(primary != null && primary.status == QueryDeparturesResult.Status.OK)
+                merged = merged == null ? primary : mergeDepartures(primary, merged);
+            else if(merged == null)
+                merged = primary;
+        }
+        if(merged == null)
+            throw new IOException("no provider answered for station " + stationId);
+        return merged;
+    }
+
+    /**
+     * @return true if only other providers than the selected one know the station, its id is theirs
+     */
+    public boolean isForeignStation(String stationId) {
+        final List<Route> routes = getRoutes(stationId);
+        if(routes == null)
+            return false;
+        for (Route route : routes) {
+            if(PRIMARY.equals(route.providerClass))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the classes of the providers to ask along with the selected one
+     */
+    private List<String> secondaryProviders(double lat, double lon) {
+        final ProviderCatalogue catalogue = ProviderCatalogue.getInstance(mContext);
+        final List<String> secondary = new ArrayList<String>(MAX_SECONDARY);
+        for (ProviderCatalogue.ProviderInfo info : ProviderCoverageIndex.getInstance(mContext).rank(lat, lon)) {
+            if(secondary.size() == MAX_SECONDARY || !info.contains(lat, lon))
+                break; //ranked, the rest does not cover the position
+            if(!catalogue.getCapabilities(info).containsAll(EnumSet.of(Capability.NEARBY_LOCATIONS, Capability.DEPARTURES)))
+                continue;
+            final NetworkProvider provider = provider(info.providerClass);
+            if(provider != null && provider != mPrimary)
+                secondary.add(info.providerClass);
+        }
+        return secondary;
+    }
+
+    private NetworkProvider provider(String providerClass) {
+        return NetworkProviderRegistry.getInstance(mContext).get(providerClass).provider;
+    }
+
+    private List<Route> getRoutes(String stationId) {
+        synchronized (ProviderFanOut.class) {
+            return loadRoutes(mContext).get(mPrimary.id() + ":" + stationId);
+        }
+    }
+
+    private void putRoutes(HashMap<String, List<Route>> routes) {
+        if(routes.isEmpty())
+            return;
+        final StringBuilder encoded = new StringBuilder();
+        synchronized (ProviderFanOut.class) {
+            final LinkedHashMap<String, List<Route>> all = loadRoutes(mContext);
+            for (Map.Entry<String, List<Route>> entry : routes.entrySet())
+                all.put(mPrimary.id() + ":" + entry.getKey(), entry.getValue());
+            //one line per station: key, then provider class and station id of every route, tab separated
+            for (Map.Entry<String, List<Route>> entry : all.entrySet()) {
+                encoded.append(entry.getKey());
+                for (Route route : entry.getValue())
+                    encoded.append('\t').append(route.providerClass).append('\t').append(route.stationId);
+                encoded.append('\n');
+            }
+        }
+        mContext.getSharedPreferences(ROUTES_PREFS, Context.MODE_PRIVATE).edit().putString(ROUTES_KEY, encoded.toString()).apply();
+    }
+
+    private static LinkedHashMap<String, List<Route>> loadRoutes(Context context) {
+        if(sRoutes != null)
+            return sRoutes;
+        sRoutes = new LinkedHashMap<String, List<Route>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Route>> eldest) {
+                return size() > MAX_ROUTES;
+            }
+        };
+        final String encoded = context.getSharedPreferences(ROUTES_PREFS, Context.MODE_PRIVATE).getString(ROUTES_KEY, "");
+        for (String line : encoded.split("\n")) {
+            final String[] fields = line.split("\t", -1);
+            if(fields.length < 3 || fields.length % 2 == 0)
+                continue;
+            final List<Route> routes = new ArrayList<Route>(fields.length / 2);
+            for (int i = 1; i < fields.length; i += 2)
+                routes.add(new Route(fields[i], fields[i + 1]));
+            sRoutes.put(fields[0], routes);
+        }
+        return sRoutes;
+    }
+
+    private static <T> FutureTask<T> submit(NetworkProvider provider, Callable<T> callable) {
+        final FutureTask<T> task = new FutureTask<T>(callable);
+        DepartureFetchExecutor.forProvider(provider.id()).execute(task);
+        return task;
+    }
+
+    private static <T> FutureTask<T> submitPrimary(Callable<T> callable) {
+        final FutureTask<T> task = new FutureTask<T>(callable);
+        sPrimaryExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * @param wait true to wait past the deadline, no other provider answered
+     * @return the result, null if the query failed or took longer than the budget while not waiting
+     * @throws IOException if the query failed while waiting
+     */
+    private static <T> T collectPrimary(FutureTask<T> task, long deadline, boolean wait) throws IOException {
+        if(!wait)
+            return collect(task, deadline);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            //the caller got cancelled
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the result, null if the query failed or took longer than the budget
+     */
+    private static <T> T collect(FutureTask<T> task, long deadline) {
+        try {
+            return task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            //timeout or failed provider, the merged result does without it
+            task.cancel(true);
+            if(BuildConfig.DEBUG)
+                Log.d(TAG, "provider left out: " + e);
+        }
+        return null;
+    }
+
+    private static Location findSameStation(List<Location> stations, Location station) {
+        if(!station.hasLocation() || station.name == null)
+            return null;
+        final float[] distance = new float[1];
+        for (Location candidate : stations) {
+            if(!candidate.hasLocation() || !station.name.equalsIgnoreCase(candidate.name))
+                continue;
+            android.location.Location.distanceBetween(candidate.lat / 1E6, candidate.lon / 1E6, station.lat / 1E6, station.lon / 1E6, distance);
+            if(distance[0] < SAME_STATION_DISTANCE)
+                return candidate;
+        }
+        return null;
+    }
+
+    private static boolean containsId(List<Location> stations, String id) {
+        for (Location station : stations) {
+            if(station.id != null && station.id.equals(id))
+                return true;
+        }
+        return false;
+    }
+
+    private static void addRoute(HashMap<String, List<Route>> routes, String stationId, String providerClass, String providerStationId) {
+        List<Route> list = routes.get(stationId);
+        if(list == null)
+        {
+            list = new ArrayList<Route>(2);
+            routes.put(stationId, list);
+        }
+        list.add(new Route(providerClass, providerStationId));
+    }
+
+    private static void sortByDistance(List<Location> stations, Location from) {
+        final double lat = from.lat / 1E6;
+        final double lon = from.lon / 1E6;
+        Collections.sort(stations, new Comparator<Location>() {
+            @Override
+            public int compare(Location lhs, Location rhs) {
+                return Float.compare(distance(lhs, lat, lon), distance(rhs, lat, lon));
+            }
+        });
+    }
+
+    private static float distance(Location station, double lat, double lon) {
+        if(!station.hasLocation())
+            return Float.MAX_VALUE;
+        final float[] distance = new float[1];
+        android.location.Location.distanceBetween(lat, lon, station.lat / 1E6, station.lon / 1E6, distance);
+        return distance[0];
+    }
+
+    /**
+     * Adds the departures of every platform group of the other provider to the group of the same
+     * platform, groups we don't have are added as they are. A departure both providers know is only
+     * kept once.
+     */
+    private static QueryDeparturesResult mergeDepartures(QueryDeparturesResult base, QueryDeparturesResult other) {
+        final Set<String> known = new HashSet<String>();
+        final List<Location> platforms = new ArrayList<Location>(base.stationDepartures.size());
+        final List<List<Departure>> departures = new ArrayList<List<Departure>>(base.stationDepartures.size());
+        for (StationDepartures stationDepartures : base.stationDepartures) {
+            platforms.add(stationDepartures.location);
+            departures.add(new ArrayList<Departure>(stationDepartures.departures));
+            for (Departure departure : stationDepartures.departures)
+                known.add(departureKey(departure));
+        }
+
+        final QueryDeparturesResult merged = new QueryDeparturesResult(base.header);
+        final List<StationDepartures> added = new ArrayList<StationDepartures>();
+        for (StationDepartures stationDepartures : other.stationDepartures) {
+            final Location same = findSameStation(platforms, stationDepartures.location);
+            final List<Departure> target = same != null ? departures.get(platforms.indexOf(same)) : new ArrayList<Departure>();
+            for (Departure departure : stationDepartures.departures) {
+                if(known.add(departureKey(departure)))
+                    target.add(departure);
+            }
+            if(same == null && !target.isEmpty())
+                added.add(new StationDepartures(stationDepartures.location, target, stationDepartures.lines));
+        }
+        for (int i = 0; i < platforms.size(); i++) {
+            final StationDepartures stationDepartures = base.stationDepartures.get(i);
+            final List<Departure> list = departures.get(i);
+            if(list.size() != stationDepartures.departures.size())
+                Collections.sort(list, Departure.TIME_COMPARATOR);
+            merged.stationDepartures.add(new StationDepartures(stationDepartures.location, list, stationDepartures.lines));
+        }
+        merged.stationDepartures.addAll(added);
+        return merged;
+    }
+
+    //providers differ in ids and line formats, label, destination and planned time are what they share
+    private static String departureKey(Departure departure) {
+        final String label = departure.line != null ? departure.line.label : null;
+        final String destination = departure.destination != null ? departure.destination.name : null;
+        final Date planned = departure.plannedTime != null ? departure.plannedTime : departure.predictedTime;
+        return label + '|' + destination + '|' + (planned != null ? planned.getTime() : 0);
+    }
+}
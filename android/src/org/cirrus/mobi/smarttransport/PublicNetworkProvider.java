@@ -36,6 +36,8 @@ package org.cirrus.mobi.smarttransport;
 import java.io.IOException;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import android.location.Location;
@@ -53,55 +55,154 @@ public class PublicNetworkProvider {
 
 	interface ResultCallbacks {
 		public void nearbyStationsReceived(NearbyLocationsResult result);
-		public void departuresReceived(QueryDeparturesResult result);
+		public void departuresReceived(de.schildbach.pte.dto.Location station, QueryDeparturesResult result);
 	}
 
 	private ResultCallbacks callbackInterface;
 	private NetworkProvider networkProvider;
 	private FetchNearByStationsTask fnbst;
+	private final NearbyStationsCache nearbyStationsCache;
+	//also asks neighbouring networks if set
+	private ProviderFanOut fanOut;
 
     private boolean cancelled = false;
-	//private FetchDepaturesTask fetchDepaturesTask = null;
+    //running departure queries by station id, only touched on the main thread
+    private final HashMap<String, FetchDepaturesTask> mDepartureTasks = new HashMap<String, FetchDepaturesTask>();
+    //stations where the last page brought nothing new
+    private final HashSet<String> mExhausted = new HashSet<String>();
 
-	public PublicNetworkProvider(ResultCallbacks callbackInterface, NetworkProvider networkProvider)
+	/**
+	 * @param nearbyStationsCache may be null to always query the provider
+	 */
+	public PublicNetworkProvider(ResultCallbacks callbackInterface, NetworkProvider networkProvider, NearbyStationsCache nearbyStationsCache)
 	{
 		this.callbackInterface = callbackInterface;
 		this.networkProvider = networkProvider;
+		this.nearbyStationsCache = nearbyStationsCache;
 	}
 
+	/**
+	 * Queries the providers of neighbouring networks along with ours. Their stations are not
+	 * cached on disk, the departures need the routes found by the search.
+	 *
+	 * @param fanOut null to only use our provider
+	 */
+	public void setFanOut(ProviderFanOut fanOut) {
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * Starts a search for stations around the location, a search that is still running is
+	 * cancelled, its result would be outdated.
+	 */
 	public boolean getNearbyStations(Location location) {
-        cancelled = false;
-		if(fnbst != null) //we already search
+		if(location == null)
 			return false;
+        cancelled = false;
+		if(fnbst != null)
+			fnbst.cancel(true);
 		fnbst = new FetchNearByStationsTask();
-		if(location != null)
-			fnbst.execute(location);
+		fnbst.executeOnExecutor(DepartureFetchExecutor.forProvider(networkProvider.id()), location);
 		return true;
 	}
 
 	private void recievedStations(NearbyLocationsResult result) {
+        this.fnbst = null; //before the callback, it may start the next search
 		if(this.callbackInterface != null)
 			this.callbackInterface.nearbyStationsReceived(result);
-        this.fnbst = null;
 	}
 
-	private void recievedDepatures(QueryDeparturesResult result) {
+	private void recievedDepatures(de.schildbach.pte.dto.Location station, QueryDeparturesResult result) {
 		if(this.callbackInterface != null)
-			this.callbackInterface.departuresReceived(result);
+			this.callbackInterface.departuresReceived(station, result);
 
 	}
 
 
 	public void getDepatures(de.schildbach.pte.dto.Location station)
+	{
+		getDepatures(station, null);
+	}
+
+	/**
+	 * @param loaded the departures the caller shows, the query asks for at least as many so
+	 * pages loaded while scrolling are not replaced by a first page. May be null.
+	 */
+	public void getDepatures(de.schildbach.pte.dto.Location station, QueryDeparturesResult loaded)
 	{
         cancelled = false;
+        int maxDepartures = DeparturePages.FIRST_PAGE;
+        if(loaded != null)
+            maxDepartures = Math.max(maxDepartures, DeparturePages.count(loaded));
+        //serve what we have right away, only go to the network if it is getting old
+        final DepartureCache.Entry cached = DepartureCache.getInstance().get(networkProvider.id(), station.id);
+        if(cached != null)
+        {
+            recievedDepatures(station, cached.result);
+            if(cached.isFresh())
+                return;
+            //the cache holds the merged pages as well
+            maxDepartures = Math.max(maxDepartures, DeparturePages.count(cached.result));
+            if(BuildConfig.DEBUG)
+                Log.v(FetchDepaturesTask.TAG, "revalidating "+maxDepartures+" departures of "+station.id);
+        }
+        if(mDepartureTasks.containsKey(station.id))
+            return; //already on its way, the running query delivers the result
+        mExhausted.remove(station.id);
 		FetchDepaturesTask fetchDepaturesTask;
-		fetchDepaturesTask = new FetchDepaturesTask();
-		fetchDepaturesTask.execute(station);
+		fetchDepaturesTask = new FetchDepaturesTask(new Date(System.currentTimeMillis()), maxDepartures, null);
+        mDepartureTasks.put(station.id, fetchDepaturesTask);
+		fetchDepaturesTask.executeOnExecutor(DepartureFetchExecutor.forProvider(networkProvider.id()), station);
 	}
 
+	/**
+	 * Fetches the page following the departures we have and delivers them merged into
+	 * the loaded ones.
+	 *
+	 * @return false if nothing was started: a query for the station is running already or
+	 * there is nothing more to get
+	 */
+	public boolean getMoreDepatures(de.schildbach.pte.dto.Location station, QueryDeparturesResult loaded)
+	{
+        if(loaded == null || mDepartureTasks.containsKey(station.id) || mExhausted.contains(station.id))
+            return false;
+        final Date from = DeparturePages.nextPageStart(loaded);
+        if(from == null)
+            return false;
+        cancelled = false;
+        if(BuildConfig.DEBUG)
+            Log.v(FetchDepaturesTask.TAG, "fetching more departures of "+station.id+" from "+from);
+		FetchDepaturesTask fetchDepaturesTask = new FetchDepaturesTask(from, DeparturePages.NEXT_PAGE, loaded);
+        mDepartureTasks.put(station.id, fetchDepaturesTask);
+		fetchDepaturesTask.executeOnExecutor(DepartureFetchExecutor.forProvider(networkProvider.id()), station);
+		return true;
+	}
+
+    /**
+     * @return true if a query for the station is running, its result is delivered once it is done
+     */
+    public boolean isFetching(String stationId) {
+        return mDepartureTasks.containsKey(stationId);
+    }
+
     public void cancelRequests() {
         this.cancelled = true;
+        //interrupts running queries, queued ones never start
+        for (FetchDepaturesTask task : mDepartureTasks.values())
+            task.cancel(true);
+        mDepartureTasks.clear();
+        if(fnbst != null)
+        {
+            fnbst.cancel(true);
+            fnbst = null;
+        }
+    }
+
+    private void departureTaskFinished(de.schildbach.pte.dto.Location station, FetchDepaturesTask task, boolean exhausted) {
+        if(mDepartureTasks.get(station.id) == task)
+            mDepartureTasks.remove(station.id);
+        if(exhausted)
+            mExhausted.add(station.id);
     }
 
 	class FetchNearByStationsTask extends AsyncTask<Location, Void, NearbyLocationsResult>
@@ -112,11 +213,30 @@ public class PublicNetworkProvider {
 		@Override
 		protected NearbyLocationsResult doInBackground(Location... params) {
 
+			final double latitude = params[0].getLatitude();
+			final double longitude = params[0].getLongitude();
+			NearbyStationsCache.Entry cached = null;
+			final NearbyStationsCache nearbyStationsCache = fanOut == null ? PublicNetworkProvider.this.nearbyStationsCache : null;
+			if(nearbyStationsCache != null)
+			{
+				cached = nearbyStationsCache.get(networkProvider.id(), latitude, longitude);
+				if(cached != null && cached.isFresh())
+				{
+					if(BuildConfig.DEBUG)
+						Log.v(TAG, "stations from cache");
+					return cached.result;
+				}
+			}
+
 			if(BuildConfig.DEBUG)
 				Log.v(TAG, "fetching stations....");
-			de.schildbach.pte.dto.Location pteLoc = new de.schildbach.pte.dto.Location(LocationType.COORD,null, (int)(params[0].getLatitude()*1E6), (int)(params[0].getLongitude()*1E6));
+			de.schildbach.pte.dto.Location pteLoc = new de.schildbach.pte.dto.Location(LocationType.COORD,null, (int)(latitude*1E6), (int)(longitude*1E6));
 			try {
-				NearbyLocationsResult nsr = networkProvider.queryNearbyLocations(EnumSet.of(LocationType.STATION), pteLoc, 0, MAX_STATIONS);
+				final NearbyLocationsResult nsr;
+				if(fanOut != null)
+					nsr = fanOut.queryNearbyLocations(EnumSet.of(LocationType.STATION), pteLoc, 0, MAX_STATIONS);
+				else
+					nsr = networkProvider.queryNearbyLocations(EnumSet.of(LocationType.STATION), pteLoc, 0, MAX_STATIONS);
 
 				if(nsr.status == nsr.status.OK)
 				{
@@ -129,14 +249,20 @@ public class PublicNetworkProvider {
 								Log.v(TAG, "Station: "+station.id+ " name: "+station.name+ "place "+station.place+ " short "+station.uniqueShortName());
 						}
 					}
+					if(nearbyStationsCache != null)
+						nearbyStationsCache.put(networkProvider.id(), latitude, longitude, nsr);
 					return nsr;
 				}
 			} catch (IOException e) {
 				Log.e(TAG, "IOException fetching stations");
-                ACRA.getErrorReporter().putCustomData("NetworkProvider", networkProvider.id().toString());
-                ACRA.getErrorReporter().handleException(e);
-
+                if(!isCancelled()) {
+                    ACRA.getErrorReporter().putCustomData("NetworkProvider", networkProvider.id().toString());
+                    ACRA.getErrorReporter().handleException(e);
+                }
             }
+			//old stations are better than none, e.g. when we are offline
+			if(cached != null)
+				return cached.result;
 			return null;
 		}
 		@Override
@@ -151,13 +277,42 @@ public class PublicNetworkProvider {
 	class FetchDepaturesTask extends AsyncTask<de.schildbach.pte.dto.Location, Void, QueryDeparturesResult>
 	{
 		public static final String TAG = "SMT/FDT";
+		private de.schildbach.pte.dto.Location station;
+		private final Date from;
+		private final int maxDepartures;
+		//the departures this page continues, null for the first page
+		private final QueryDeparturesResult loaded;
+		private boolean exhausted = false;
+
+		FetchDepaturesTask(Date from, int maxDepartures, QueryDeparturesResult loaded) {
+			this.from = from;
+			this.maxDepartures = maxDepartures;
+			this.loaded = loaded;
+		}
 
 		@Override
 		protected QueryDeparturesResult doInBackground(
 				de.schildbach.pte.dto.Location... params) {
-			de.schildbach.pte.dto.Location station = params[0];
+			station = params[0];
 			try {
-				QueryDeparturesResult qdr = networkProvider.queryDepartures(station.id, new Date(System.currentTimeMillis()), 15, true);
+				QueryDeparturesResult qdr;
+				if(fanOut != null)
+					qdr = fanOut.queryDepartures(station.id, from, maxDepartures, true);
+				else
+					qdr = networkProvider.queryDepartures(station.id, from, maxDepartures, true);
+				if(loaded != null)
+				{
+					if(qdr.status != QueryDeparturesResult.Status.OK)
+						return null;
+					final int before = DeparturePages.count(loaded);
+					qdr = DeparturePages.merge(loaded, qdr);
+					exhausted = DeparturePages.count(qdr) == before;
+					if(exhausted)
+						return null; //nothing new, keep what is shown
+				}
+				//a station only a neighbouring network knows has that network's id, keep it out of ours
+				if(fanOut == null || !fanOut.isForeignStation(station.id))
+					DepartureCache.getInstance().put(networkProvider.id(), station.id, qdr);
 				if(BuildConfig.DEBUG)
 				{
 					if(qdr.status == de.schildbach.pte.dto.QueryDeparturesResult.Status.OK)
@@ -176,8 +331,10 @@ public class PublicNetworkProvider {
 				return qdr;
 
 			} catch (IOException e) {
-                ACRA.getErrorReporter().putCustomData("NetworkProvider", networkProvider.id().toString());
-                ACRA.getErrorReporter().handleException(e);
+                if(!isCancelled()) { //interrupted by cancelRequests() otherwise
+                    ACRA.getErrorReporter().putCustomData("NetworkProvider", networkProvider.id().toString());
+                    ACRA.getErrorReporter().handleException(e);
+                }
             }
 
 			return null;
@@ -185,8 +342,10 @@ public class PublicNetworkProvider {
 		@Override
 		protected void onPostExecute(QueryDeparturesResult result) {		
 			super.onPostExecute(result);
-            if(!cancelled)
-			    recievedDepatures(result);
+            departureTaskFinished(station, this, exhausted);
+            //a later page that failed leaves the shown departures alone
+            if(!cancelled && (result != null || loaded == null))
+			    recievedDepatures(station, result);
 		}
 	}
 
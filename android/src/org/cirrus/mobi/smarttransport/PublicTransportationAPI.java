@@ -18,9 +18,8 @@
 package org.cirrus.mobi.smarttransport;
 
 import android.content.Context;
-import android.util.Log;
-
-import org.acra.ACRA;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 import de.schildbach.pte.NetworkProvider;
 
@@ -29,8 +28,6 @@ import de.schildbach.pte.NetworkProvider;
  */
 public class PublicTransportationAPI {
 
-    private static final String TAG = "PublicTransportationAPI";
-    private static final String PACKAGE = Constants.PACKAGE ;
     private final Context mContext;
     private NetworkProvider networkProvider;
 
@@ -40,47 +37,16 @@ public class PublicTransportationAPI {
 
 
     public String getNetworkForProvider(final String providerClass) {
-        //lookup in arrays
-        final String[] values = mContext.getResources().getStringArray(R.array.pref_transportNetwork_values);
-        //find index in values
-        int index = -1;
-        for (int i = 0; i < values.length; i++) {
-            if(values[i].equals(providerClass))
-            {
-                index = i;
-                break;
-            }
-        }
-        final String network = mContext.getResources().getStringArray(R.array.pref_transportNetwork_Entries)[index];
-        return network;
+        return ProviderCatalogue.getInstance(mContext).getNetwork(providerClass);
     }
 
     public PublicNetworkProvider initNetworkProvider(PublicNetworkProvider.ResultCallbacks callbacks, String providerClass) {
-
-        if(BuildConfig.DEBUG)
-            Log.v(TAG, "Loading class: " + providerClass);
-
-        //we do need the network as well
-
-        try {
-            networkProvider = (NetworkProvider) Class.forName(PACKAGE+providerClass).newInstance();
-        } catch (Exception e) {
-
-            Log.e(TAG, "Could not load networkprovider. should not happen", e);
-            //maybe it needs additional params
-            try {
-                networkProvider = (NetworkProvider) Class.forName(PACKAGE+providerClass).getDeclaredConstructor(String.class).newInstance("");
-                Log.w(TAG, "second try");
-            } catch (Exception e1) {
-                e1.printStackTrace();
-                Log.e(TAG, "2nd try to load provider failed!",e1);
-                ACRA.getErrorReporter().putCustomData("providerClass", providerClass);
-                ACRA.getErrorReporter().handleException(e);
-            }
-
-
-        }
-
-        return new PublicNetworkProvider(callbacks, networkProvider);
+        //created once per process, later sessions reuse the instance
+        networkProvider = NetworkProviderRegistry.getInstance(mContext).get(providerClass).provider;
+        final PublicNetworkProvider publicNetworkProvider = new PublicNetworkProvider(callbacks, networkProvider, NearbyStationsCache.getInstance(mContext));
+        final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext);
+        if(networkProvider != null && sharedPref.getBoolean(mContext.getString(R.string.pref_fanout), false))
+            publicNetworkProvider.setFanOut(new ProviderFanOut(mContext, networkProvider));
+        return publicNetworkProvider;
     }
 }
@@ -131,19 +131,7 @@ public class SmartPreferenceActivity extends PreferenceActivity implements OnPre
 
 
 	private String getNetworkForProvider(final String providerClass) {
-		//lookup in arrays
-		final String[] values = getResources().getStringArray(R.array.pref_transportNetwork_values);
-		//find index in values
-		int index = -1;
-		for (int i = 0; i < values.length; i++) {
-			if(values[i].equals(providerClass))
-			{	
-				index = i;
-				break;
-			}
-		}
-		final String network = getResources().getStringArray(R.array.pref_transportNetwork_Entries)[index];
-		return network;
+		return ProviderCatalogue.getInstance(this).getNetwork(providerClass);
 	}
 
 
@@ -51,7 +51,9 @@
 
 package org.cirrus.mobi.smarttransport;
 
+import android.content.SharedPreferences;
 import android.os.Build;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import org.acra.ACRA;
 import org.acra.ACRAConfiguration;
@@ -74,6 +76,14 @@ public class SmartTransportApplication extends Application {
 		    ACRA.init(this);
 
 		super.onCreate();
+
+		//create the selected provider before the first watch session needs it
+		final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+		final String prefKey = getString(R.string.pref_publicnetwork);
+		if(sharedPref.contains(prefKey))
+			NetworkProviderRegistry.getInstance(this).warm(sharedPref.getString(prefKey, getString(R.string.pref_transportNetwork_default)));
+
+		FavouritesRefresher.getInstance(this).start();
 	}
 
     private boolean isEmulator() {
@@ -54,6 +54,7 @@ import com.sonyericsson.extras.liveware.extension.util.registration.DeviceInfo;
 import com.sonyericsson.extras.liveware.extension.util.registration.DisplayInfo;
 import com.sonyericsson.extras.liveware.extension.util.registration.RegistrationAdapter;
 import com.sonyericsson.extras.liveware.extension.util.registration.RegistrationInformation;
+import com.sonyericsson.extras.liveware.extension.util.widget.WidgetExtension;
 
 import android.os.Handler;
 import android.util.Log;
@@ -100,8 +101,21 @@ public class SmartTransportExtensionService extends ExtensionService {
         return false;
     }
 
+    @Override
+    protected void onConnectionChanged(boolean connected) {
+        super.onConnectionChanged(connected);
+        //warm the caches before the user opens the control
+        if(connected)
+        {
+            Prefetcher.getInstance(this).prefetch();
+            FavouritesRefresher.getInstance(this).connected();
+        }
+    }
+
     @Override
     public ControlExtension createControlExtension(String hostAppPackageName) {
+        //usually covered by onConnectionChanged already, the user still picks a mode first
+        Prefetcher.getInstance(this).prefetch();
         final int controlSWWidth = SmartWatchControlExtension.getSupportedControlWidth(this);
         final int controlSWHeight = SmartWatchControlExtension.getSupportedControlHeight(this);
    
@@ -115,4 +129,9 @@ public class SmartTransportExtensionService extends ExtensionService {
         }
         throw new IllegalArgumentException("No control for: " + hostAppPackageName);
     }
+
+    @Override
+    public WidgetExtension createWidgetExtension(String hostAppPackageName) {
+        return new SmartWatchWidgetExtension(this, hostAppPackageName, new Handler());
+    }
 }
@@ -89,7 +89,14 @@ public class SmartTransportRegistrationInformation extends RegistrationInformati
 
     @Override
     public int getRequiredWidgetApiVersion() {
-        return 0;
+        return 1;
+    }
+
+    @Override
+    public boolean isWidgetSizeSupported(int width, int height) {
+        //the SmartWatchWidgetImage is made for the SmartWatch frame only
+        return width == mContext.getResources().getDimensionPixelSize(R.dimen.smart_watch_widget_width_outer)
+                && height == mContext.getResources().getDimensionPixelSize(R.dimen.smart_watch_widget_height_outer);
     }
 
     /**
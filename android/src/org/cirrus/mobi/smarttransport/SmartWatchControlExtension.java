@@ -15,19 +15,16 @@ import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
-import android.os.Bundle;
 import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
-import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
-import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 import android.widget.TableLayout;
@@ -58,6 +55,8 @@ import org.cirrus.mobi.smarttransport.dto.FavLocation;
 public class SmartWatchControlExtension extends ControlExtension implements ResultCallbacks {
 
 	private static final int MAX_DEPATURE_ROWS = 3;
+    //load the stations nobody looked at yet once the user stopped swiping for this long
+    private static final long IDLE_LOAD_DELAY = 5000;
     private final PublicTransportationAPI mPublicTransportationAPI;
     private Handler mHandler;
 
@@ -66,6 +65,12 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
     private int width;
     private int height;
     private Bitmap mBackground;
+    private final FrameBufferPool mFramePool;
+    private final DirtyRegionRenderer mRenderer;
+    //our screens use a handful of colours, frames with more than the palette holds go out as plain PNG
+    private final FrameEncoder mFrameEncoder = new PaletteFrameEncoder(false);
+    private final FrameDispatcher mFrameDispatcher;
+    private final MinuteTicker mMinuteTicker;
     private static final Bitmap.Config BITMAP_CONFIG = Bitmap.Config.RGB_565;
 	private static final int STATE_INITIAL = 1;
 
@@ -78,6 +83,7 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
     private static final int STATE_SELECT_MODE = 8;
     private static final int STATE_NO_FAVS_HELP_TEXT = 9;
     private static final int STATE_SAVED_FAV = 10;
+    private static final int STATE_ERROR_NOLOCATION = 11;
 
 	protected static final String TAG = "SMT/SWCE";
 
@@ -85,18 +91,29 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 	private int state = STATE_INITIAL;
 	private NetworkProvider networkProvider;
 	private LocationManager locationManager;
+	private LocationStrategy mLocationStrategy;
 	private PublicNetworkProvider publicNetworkProvider;
 	//private NearbyStationsResult mNearbyStationsResult;
 	private int mStationIndex;
-	private List<QueryDeparturesResult> mQueryDeparturesResults;
+	private final DepartureStore mDepartureStore = new DepartureStore();
 	private LayoutInflater mInflater;
 	private int mScrollIndex;
+	//departure rows that fit the last drawn station
+	private int mVisibleRows = 1;
     private String mNetwork;
     private SharedPreferences mSharedPref;
     private int mProviderIndex;
     private String mErrorMessage = "";
-    private String[] mProviderEntries;
+    private ProviderCatalogue mProviderCatalogue;
+    //providers in the order the selection walks through them, best match for the position first
+    private List<ProviderCatalogue.ProviderInfo> mRankedProviders;
+    //the user swiped to a provider, and the list got ranked by position, during this selection
+    private boolean mProviderPicked;
+    private boolean mProvidersRanked;
     private List<de.schildbach.pte.dto.Location> stations = null;
+    //inflated screens by layout id, reused for the whole session
+    private final SparseArray<View> mScreens = new SparseArray<View>();
+    private final List<DepartureRow> mDepartureRows = new ArrayList<DepartureRow>();
 
 
     public SmartWatchControlExtension(Context context, String hostAppPackageName, Handler handler) {
@@ -108,10 +125,30 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 		mContext = context;
 		width = getSupportedControlWidth(context);
 		height = getSupportedControlHeight(context);
-
-		mQueryDeparturesResults = new ArrayList<QueryDeparturesResult>(0);
+        mFramePool = new FrameBufferPool(width, height, BITMAP_CONFIG);
+        mRenderer = new DirtyRegionRenderer(width, height, mFramePool);
+        mFrameDispatcher = new FrameDispatcher(new FrameDispatcher.Sender() {
+            @Override
+            public void sendFrame(byte[] data, int x, int y, boolean partial) {
+                SmartWatchControlExtension.this.sendFrame(data, x, y, partial);
+            }
+        });
 
         mPublicTransportationAPI = new PublicTransportationAPI(mContext);
+        mMinuteTicker = new MinuteTicker(mHandler, new MinuteTicker.Listener() {
+            @Override
+            public void onMinuteTick() {
+                //countdowns are computed from the departure times on every redraw, gone ones get pruned,
+                //only the changed rows go out
+                if(state == STATE_DISPLAY_DATA)
+                {
+                    redraw();
+                    //a board left open would drain, revalidate it once it got old
+                    if(stations != null && mStationIndex < stations.size())
+                        requestDepartures(stations.get(mStationIndex));
+                }
+            }
+        });
 	}
 
 
@@ -141,11 +178,8 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
         mStationIndex = 0;
         if(BuildConfig.DEBUG)
             Log.d(TAG, "start location updates, enabled providers: "+locationManager.getProviders(true));
-        if(locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER))
-            locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, locationListener);
-        else if(locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER))
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, locationListener);
-        else
+        //may deliver a last known location right away, which moves us on to STATE_LOADING
+        if(!mLocationStrategy.start(locationCallback))
         {
             //errorState!
             state = STATE_ERROR_NOPROVIDER;
@@ -158,8 +192,16 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
     @Override
     public void onStop() {
+        mFrameDispatcher.reset();
+        mMinuteTicker.stop();
+        mHandler.removeCallbacks(mIdleLoader);
+        if(mLocationStrategy != null)
+            mLocationStrategy.stop();
         if(publicNetworkProvider != null)
             publicNetworkProvider.cancelRequests();
+        mScreens.clear();
+        mDepartureRows.clear();
+        FavouritesCache.getInstance(mContext).removeListener(favouritesListener);
     }
 
 	@Override
@@ -168,14 +210,14 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
         // Acquire a reference to the system Location Manager
         locationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        mLocationStrategy = new LocationStrategy(locationManager, mHandler);
         mInflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 
-        //should fix NPE seen on ACRA
-        this.mQueryDeparturesResults = new ArrayList<QueryDeparturesResult>(0);
+        mDepartureStore.clear();
 
         mSharedPref = PreferenceManager.getDefaultSharedPreferences(mContext);
 
-        mProviderEntries = mContext.getResources().getStringArray(R.array.pref_transportNetwork_Entries);
+        mProviderCatalogue = ProviderCatalogue.getInstance(mContext);
 
         //detect not selected provider
         if(!mSharedPref.contains(mContext.getResources().getString(R.string.pref_publicnetwork)))
@@ -207,15 +249,45 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
     private void selectProvider() {
         state = STATE_SELECT_PROVIDER;
+        mRankedProviders = mProviderCatalogue.getAll();
+        mProviderIndex = 0;
+        mProviderPicked = false;
+        mProvidersRanked = false;
+        //without a location the user swipes through the plain list
+        mLocationStrategy.start(providerLocationCallback);
         redraw();
     }
 
+    private final LocationStrategy.Callback providerLocationCallback = new LocationStrategy.Callback() {
+        @Override
+        public void onLocation(Location location, boolean refined) {
+            if(state != STATE_SELECT_PROVIDER)
+                return;
+            //refined fixes may improve the order until the user picked one, don't reorder the list under them
+            if(mProvidersRanked && mProviderPicked)
+                return;
+            final ProviderCatalogue.ProviderInfo shown = mRankedProviders.get(mProviderIndex);
+            mRankedProviders = ProviderCoverageIndex.getInstance(mContext).rank(location.getLatitude(), location.getLongitude());
+            mProvidersRanked = true;
+            //keep the provider the user swiped to, jump to the best match otherwise
+            mProviderIndex = mProviderPicked ? mRankedProviders.indexOf(shown) : 0;
+            redraw();
+        }
+
+        @Override
+        public void onLocationTimeout() {
+        }
+    };
+
 
 
     @Override
 	public void onPause() {
 		super.onPause();
-		locationManager.removeUpdates(locationListener);
+		//the host may show something else until we resume
+		mFrameDispatcher.reset();
+		mMinuteTicker.stop();
+		mLocationStrategy.stop();
 	}
 
 	/**
@@ -224,7 +296,10 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 	@Override
 	public void onResume() {
 		super.onResume();
+		//the watch might show anything by now, start over with a full frame
+		mRenderer.invalidate();
 		redraw();
+		mMinuteTicker.start();
 	}
 
 	private void redraw() {
@@ -246,6 +321,10 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
             this.mErrorMessage = mContext.getResources().getString(R.string.text_nolocationprovider);
             showErrorMessage();
             break;
+        case STATE_ERROR_NOLOCATION:
+            this.mErrorMessage = mContext.getResources().getString(R.string.text_nolocation);
+            showErrorMessage();
+            break;
         case STATE_SELECT_PROVIDER:
             showProviderSelection();
             break;
@@ -268,10 +347,8 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 	}
 
     private void showModeSelection() {
-        mBackground = Bitmap.createBitmap(width, height, BITMAP_CONFIG); // Set default density to avoid scaling. background.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-        mBackground.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-        LinearLayout selectModeLayout = (LinearLayout) LinearLayout.inflate(mContext, R.layout.mode_selection,null);
-        selectModeLayout.setLayoutParams(new LayoutParams(width, height));
+        mBackground = mFramePool.acquireFrame();
+        LinearLayout selectModeLayout = (LinearLayout) getScreen(R.layout.mode_selection);
 
         layout(selectModeLayout);
         drawLayout(selectModeLayout);
@@ -279,13 +356,11 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
     private void showProviderSelection() {
 
-        mBackground = Bitmap.createBitmap(width, height, BITMAP_CONFIG); // Set default density to avoid scaling. background.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-        mBackground.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-        RelativeLayout selectProviderLayout = (RelativeLayout) RelativeLayout.inflate(mContext, R.layout.select_provider,null);
-        selectProviderLayout.setLayoutParams(new LayoutParams(width, height));
+        mBackground = mFramePool.acquireFrame();
+        RelativeLayout selectProviderLayout = (RelativeLayout) getScreen(R.layout.select_provider);
 
         TextView selectedProviderText = (TextView) selectProviderLayout.findViewById(R.id.textSelectedProvider);
-        selectedProviderText.setText(mProviderEntries[mProviderIndex]);
+        setTextIfChanged(selectedProviderText, mRankedProviders.get(mProviderIndex).network);
 
         layout(selectProviderLayout);
         drawLayout(selectProviderLayout);
@@ -293,21 +368,38 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
     private void drawLayout(ViewGroup selectProviderLayout) {
         // Draw on canvas
-        Canvas canvas = new Canvas(mBackground);
+        Canvas canvas = mFramePool.getCanvas();
         selectProviderLayout.draw(canvas);
-        // Send bitmap to accessory
-        showBitmap(mBackground);
+        // Send changed parts to accessory
+        mRenderer.render(mBackground, mFrameSink);
+        if(BuildConfig.DEBUG)
+            Log.d(TAG, "frame buffers allocated: "+mFramePool.getBitmapAllocations()+" bitmaps, "+mFramePool.getCanvasAllocations()+" canvases");
     }
 
+    @Override
+    protected void showFrame(Bitmap bitmap, boolean partial, int x, int y) {
+        //unchanged frames are dropped, bursts coalesced
+        mFrameDispatcher.dispatch(mFrameEncoder.encode(bitmap), partial, x, y, bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    private final DirtyRegionRenderer.FrameSink mFrameSink = new DirtyRegionRenderer.FrameSink() {
+        @Override
+        public void sendFrame(Bitmap frame) {
+            showBitmap(frame);
+        }
+
+        @Override
+        public void sendRegion(Bitmap region, int x, int y) {
+            showBitmap(region, x, y);
+        }
+    };
+
     private void showErrorMessage() {
-        // Create background bitmap for animation.
-        mBackground = Bitmap.createBitmap(width, height, BITMAP_CONFIG); // Set default density to avoid scaling. background.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-        mBackground.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-        RelativeLayout errorLayout = (RelativeLayout)RelativeLayout.inflate(mContext, R.layout.no_stations, null);
-        errorLayout.setLayoutParams(new LayoutParams(width, height));
+        mBackground = mFramePool.acquireFrame();
+        RelativeLayout errorLayout = (RelativeLayout) getScreen(R.layout.no_stations);
 
         TextView textViewErrorMsg = (TextView) errorLayout.findViewById(R.id.errortext);
-        textViewErrorMsg.setText(mErrorMessage);
+        setTextIfChanged(textViewErrorMsg, mErrorMessage);
 
         //layout
         layout(errorLayout);
@@ -339,19 +431,21 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
     private void handleSwipeSelectProvider(int direction) {
         switch (direction) {
             case Control.Intents.SWIPE_DIRECTION_LEFT:
-                if(mProviderEntries != null)
+                if(mRankedProviders != null)
                 {
+                    mProviderPicked = true;
                     mProviderIndex--;
                     if(mProviderIndex < 0)
-                        mProviderIndex = mProviderEntries.length-1;
+                        mProviderIndex = mRankedProviders.size()-1;
                     redraw();
                 }
                 break;
             case Control.Intents.SWIPE_DIRECTION_RIGHT:
-                if(mProviderEntries != null)
+                if(mRankedProviders != null)
                 {
+                    mProviderPicked = true;
                     mProviderIndex++;
-                    if(mProviderIndex >= mProviderEntries.length)
+                    if(mProviderIndex >= mRankedProviders.size())
                         mProviderIndex = 0;
                     redraw();
                 }
@@ -368,6 +462,7 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
                 switch (state)
                 {
                     case STATE_ERROR:
+                    case STATE_ERROR_NOLOCATION:
                         startSearch();
                         break;
                     case STATE_SELECT_PROVIDER:
@@ -399,36 +494,82 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
     }
 
     private void showFavs() {
-        //query database, should be async
-        EntityService favLocationService = new EntityService(mContext, FavLocation.class);
-        List<FavLocation> favLocations = favLocationService.get();
-        favLocationService.close();
+        //loads off the main thread the first time, from memory afterwards
+        FavouritesRefresher.getInstance(mContext).recordUse();
+        state = STATE_LOADING;
+        redraw();
+        FavouritesCache.getInstance(mContext).load(favouritesListener);
+    }
 
-        if(favLocations != null && favLocations.size() > 0) {
-            if(BuildConfig.DEBUG)
-                Log.d(TAG, "found: "+favLocations.size()+" favs");
-            //set the favs as new result and search
-            stations = new ArrayList<de.schildbach.pte.dto.Location>();
-            for (int i = 0; i < favLocations.size(); i++) {
-                FavLocation favLocation = favLocations.get(i);
-                stations.add(new de.schildbach.pte.dto.Location(LocationType.STATION, favLocation.id, favLocation.lat, favLocation.lon, favLocation.place, favLocation.name));
+    private final FavouritesCache.Listener favouritesListener = new FavouritesCache.Listener() {
+        @Override
+        public void favouritesLoaded(List<de.schildbach.pte.dto.Location> favourites) {
+            if(state != STATE_LOADING)
+                return; //user moved on meanwhile
+            if(favourites.size() > 0) {
+                if(BuildConfig.DEBUG)
+                    Log.d(TAG, "found: "+favourites.size()+" favs");
+                //set the favs as new result and search
+                stations = favourites;
+                mStationIndex = 0;
+                mScrollIndex = 0;
+                state = STATE_DISPLAY_DATA;
+                redraw();
+                requestVisibleDepartures();
             }
-
-            state = STATE_DISPLAY_DATA;
-            redraw();
-            // for eacht station, request depatures
-            for (de.schildbach.pte.dto.Location station: stations ) {
-                publicNetworkProvider.getDepatures(station);
+            else {
+                //show help text
+                state = STATE_NO_FAVS_HELP_TEXT;
+                redraw();
             }
+        }
+    };
+
+    /**
+     * Requests the departures of the visible station and its neighbours in both swipe directions,
+     * the rest follows once the user stopped swiping for a while.
+     */
+    private void requestVisibleDepartures() {
+        final int count = stations.size();
+        requestDepartures(stations.get(mStationIndex));
+        requestDepartures(stations.get((mStationIndex + 1) % count));
+        requestDepartures(stations.get((mStationIndex - 1 + count) % count));
+        mHandler.removeCallbacks(mIdleLoader);
+        mHandler.postDelayed(mIdleLoader, IDLE_LOAD_DELAY);
+    }
 
+    private final Runnable mIdleLoader = new Runnable() {
+        @Override
+        public void run() {
+            if(state == STATE_DISPLAY_DATA && stations != null)
+                requestAllDepartures();
         }
-        else {
-            //show help text
-            state = STATE_NO_FAVS_HELP_TEXT;
-            redraw();
+    };
+
+    /**
+     * Requests the departures of all stations, the visible one first and the others by the
+     * number of swipes needed to get there.
+     */
+    private void requestAllDepartures() {
+        final int count = stations.size();
+        requestDepartures(stations.get(mStationIndex));
+        for (int distance = 1; distance <= count / 2; distance++) {
+            //swiping wraps around, so go both ways
+            requestDepartures(stations.get((mStationIndex + distance) % count));
+            requestDepartures(stations.get((mStationIndex - distance + count) % count));
         }
     }
 
+    /**
+     * Asks for departures unless the ones we have are younger than the cache's time to live,
+     * the DepartureCache decides whether that means a query.
+     */
+    private void requestDepartures(de.schildbach.pte.dto.Location station) {
+        final long fetchTime = mDepartureStore.getFetchTime(station.id);
+        if(fetchTime < 0 || System.currentTimeMillis() - fetchTime >= DepartureCache.DEFAULT_TIME_TO_LIVE)
+            publicNetworkProvider.getDepatures(station, mDepartureStore.get(station.id));
+    }
+
     private void addCurrentStationToFavs() {
         if(stations != null) {
             de.schildbach.pte.dto.Location station = stations.get(mStationIndex);
@@ -440,6 +581,7 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
             List <FavLocation> result = favLocationService.find("ID = ?",new String[]{station.id},null);
             if(result.size() == 0) {
                 favLocationService.save(favLocation);
+                FavouritesCache.getInstance(mContext).invalidate();
                 showFavSavedScreen();
             }
             else
@@ -460,7 +602,7 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
     private void selectCurrentProvider() {
         //get Provider class and write it to prefs etc.
-        String providerclass = mContext.getResources().getStringArray(R.array.pref_transportNetwork_values)[mProviderIndex];
+        String providerclass = mRankedProviders.get(mProviderIndex).providerClass;
 
         SharedPreferences.Editor editor = mSharedPref.edit();
         editor.putString(mContext.getResources().getString(R.string.pref_publicnetwork), providerclass);
@@ -482,6 +624,7 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 				if(mStationIndex < 0)
 					mStationIndex = stations.size()-1;
 				redraw();
+				requestVisibleDepartures();
 			}
 			break;
 		case Control.Intents.SWIPE_DIRECTION_RIGHT:
@@ -492,6 +635,7 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 				if(mStationIndex > stations.size()-1)
 					mStationIndex = 0;
 				redraw();
+				requestVisibleDepartures();
 			}
 			break;
 
@@ -503,8 +647,22 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 			break;
 
 		case Control.Intents.SWIPE_DIRECTION_UP:
-			mScrollIndex++;
-			redraw();
+			if(stations == null)
+				break;
+			final de.schildbach.pte.dto.Location station = stations.get(mStationIndex);
+			final QueryDeparturesResult result = mDepartureStore.get(station.id);
+			if(result == null)
+				break;
+			final int step = Math.max(1, mVisibleRows-1);
+			final int upcoming = upcomingCount(result, System.currentTimeMillis());
+			if((mScrollIndex+1) * step < upcoming)
+			{
+				mScrollIndex++;
+				redraw();
+			}
+			//fetch the next page while the user still reads this one
+			if((mScrollIndex+1) * step + mVisibleRows >= upcoming)
+				publicNetworkProvider.getMoreDepatures(station, result);
 			break;
 
 		default:
@@ -515,15 +673,12 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
 
 	private void showSearchImage() {
-		// Create background bitmap for animation.
-		mBackground = Bitmap.createBitmap(width, height, BITMAP_CONFIG); // Set default density to avoid scaling. background.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-		mBackground.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-		RelativeLayout locatingLayout = (RelativeLayout)RelativeLayout.inflate(mContext, R.layout.locating, null);
-		locatingLayout.setLayoutParams(new LayoutParams(width, height));
+		mBackground = mFramePool.acquireFrame();
+		RelativeLayout locatingLayout = (RelativeLayout) getScreen(R.layout.locating);
 
         //getTextView and set current network
         TextView textView = (TextView) locatingLayout.findViewById(R.id.networkText);
-        textView.setText(mNetwork);
+        setTextIfChanged(textView, mNetwork);
 
 
 		//layout
@@ -535,15 +690,12 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
 
 	private void showLoadingImage() {
-		// Create background bitmap for animation.
-		mBackground = Bitmap.createBitmap(width, height, BITMAP_CONFIG); // Set default density to avoid scaling. background.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-		mBackground.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-		RelativeLayout loadingLayout = (RelativeLayout)RelativeLayout.inflate(mContext, R.layout.loading, null);
-		loadingLayout.setLayoutParams(new LayoutParams(width, height));
+		mBackground = mFramePool.acquireFrame();
+		RelativeLayout loadingLayout = (RelativeLayout) getScreen(R.layout.loading);
 
         //getTextView and set current network
         TextView textView = (TextView) loadingLayout.findViewById(R.id.networkText);
-        textView.setText(mNetwork);
+        setTextIfChanged(textView, mNetwork);
 
         //layout
         layout(loadingLayout);
@@ -553,6 +705,9 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 	}
 
     private void layout(View layout) {
+        //cached screens keep their layout, only changed content asks for a new one
+        if(!layout.isLayoutRequested())
+            return;
         long startmillis = 0;
         if(BuildConfig.DEBUG)
             startmillis = System.currentTimeMillis();
@@ -575,12 +730,9 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
     public void showData()
 	{
-		// Create background bitmap.
-		mBackground = Bitmap.createBitmap(width, height, BITMAP_CONFIG); // Set default density to avoid scaling. background.setDensity(DisplayMetrics.DENSITY_DEFAULT);
+		mBackground = mFramePool.acquireFrame();
 		//LinearLayout root = new LinearLayout(mContext); root.setLayoutParams(new LayoutParams(width, height));
-		//mBackground.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-		LinearLayout stationsLayout = (LinearLayout)LinearLayout.inflate(mContext, R.layout.smartwatch_stations, null);
-		stationsLayout.setLayoutParams(new LayoutParams(width, height));
+		LinearLayout stationsLayout = (LinearLayout) getScreen(R.layout.smartwatch_stations);
 		if(BuildConfig.DEBUG)
 			Log.d(TAG, "Using: w:"+width+" h: "+height);
 
@@ -595,7 +747,7 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
             LinearLayout stationHeader = (LinearLayout) stationsLayout.findViewById(R.id.station_header);
 			de.schildbach.pte.dto.Location station = stations.get(mStationIndex);
 			TextView stationName = (TextView) stationsLayout.findViewById(R.id.Station);
-			stationName.setText(shortStationName(station));
+			setTextIfChanged(stationName, shortStationName(station));
             layout(stationHeader);
 
 			int lines = stationName.getLineCount();
@@ -611,83 +763,179 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
             }
 		}
 		//depatures
-		if(mQueryDeparturesResults.size() > 0)
+		int shownRows = 0;
+		boolean loading = false;
+		TableLayout tl = (TableLayout) stationsLayout.findViewById(R.id.departuesTable);
+		if(stations != null)
 		{
-			int offset = mScrollIndex * (departureRows-1);
+			mVisibleRows = departureRows;
+			//the same step as swiping up, a single row still scrolls
+			final int step = Math.max(1, departureRows-1);
+			//check if we have the depatures already...
+			QueryDeparturesResult result = mDepartureStore.get(stations.get(mStationIndex).id);
+			//the departures may have been replaced by fewer ones or gone meanwhile, don't scroll past them
+			if(result != null)
+			{
+				final int upcoming = upcomingCount(result, System.currentTimeMillis());
+				mScrollIndex = Math.min(mScrollIndex, Math.max(0, (upcoming-1) / step));
+			}
+			int offset = mScrollIndex * step;
 			if(BuildConfig.DEBUG)
 				Log.d(TAG, "mStation index: "+mStationIndex+ " departure size: "+stations.size()+ "offset: "+offset);
 
-			TableLayout tl = (TableLayout) stationsLayout.findViewById(R.id.departuesTable);
-			//check if we have the depatures already...
-			if(mQueryDeparturesResults.size() >= mStationIndex+1)
+			if(result != null)
 			{
 
-				List<StationDepartures> dep = mQueryDeparturesResults.get(mStationIndex).stationDepartures;
-
-                //filter list for already gone departures first
-                filterGoneDepartures(dep);
+				List<StationDepartures> dep = result.stationDepartures;
+				final long now = System.currentTimeMillis();
 
 				for (StationDepartures stationDepartures : dep) {
 					List<Departure> depatures = stationDepartures.departures;
-					for(int i = 0; i < depatures.size(); i++)
+                    //skip already gone departures, the list may be shared with the cache so leave it alone
+                    final int first = Departures.firstUpcoming(depatures, now);
+					for(int i = first; i < depatures.size(); i++)
 					{
-                        if(i+offset >= depatures.size())
+                        if(i+offset >= depatures.size() || shownRows == departureRows)
                             break;
 
 						Departure depature = depatures.get(i+offset);
-						View table = mInflater.inflate(R.layout.table_row_departure, tl, true);
-
-						View row = ((ViewGroup)table).getChildAt(i*2);
-						View textView = ((ViewGroup)table).getChildAt((i*2)+1);
-
-						TextView depLine = (TextView) row.findViewById(R.id.depLine);
-						depLine.setText(getLineText(depature.line));
-						//set color if style exist
-						if(depature.line.style != null)
-						{
-							depLine.setBackgroundColor(depature.line.style.backgroundColor);
-							depLine.setTextColor(depature.line.style.foregroundColor);
-						}
-
-						TextView depTime = (TextView) row.findViewById(R.id.depTime);
-						depTime.setText(getDepartureText(depature));//TODO: delays
-
-						TextView depDest = (TextView) textView.findViewById(R.id.depTarget);
-						depDest.setText(depature.destination.name);
-						if(i == departureRows-1)
-							break;
+						bindDepartureRow(getDepartureRow(tl, shownRows), depature, now);
+						shownRows++;
 					}
 				}
 			}
 			else
 			{
 				//we are still loading depatures, show loading image & Text
-				ImageView loadingImage = (ImageView) stationsLayout.findViewById(R.id.loadingimage);
-				TextView loadingText = (TextView) stationsLayout.findViewById(R.id.loadingText);
-				loadingImage.setVisibility(View.VISIBLE);
-				loadingText.setVisibility(View.VISIBLE);
+				loading = true;
 			}
 
 		}
+		//hide the rows we don't need this time
+		for (int i = shownRows; i < mDepartureRows.size(); i++)
+			mDepartureRows.get(i).setVisibility(View.GONE);
+		setVisibilityIfChanged(stationsLayout.findViewById(R.id.loadingimage), loading ? View.VISIBLE : View.GONE);
+		setVisibilityIfChanged(stationsLayout.findViewById(R.id.loadingText), loading ? View.VISIBLE : View.GONE);
+
         layout(stationsLayout);
 
 		// Draw on canvas
-		Canvas canvas = new Canvas(mBackground);
-		stationsLayout.draw(canvas);
-		// Send bitmap to accessory
-		showBitmap(mBackground);
+		drawLayout(stationsLayout);
 	}
 
+    /**
+     * @return the most departures that are not gone of any platform / station in the result
+     */
+    private static int upcomingCount(QueryDeparturesResult result, long now) {
+        int count = 0;
+        for (StationDepartures stationDepartures : result.stationDepartures) {
+            final List<Departure> departures = stationDepartures.departures;
+            count = Math.max(count, departures.size() - Departures.firstUpcoming(departures, now));
+        }
+        return count;
+    }
+
+    /**
+     * @return the view tree of this screen, inflated on first use and reused afterwards
+     */
+    private View getScreen(int layoutId) {
+        View screen = mScreens.get(layoutId);
+        if(screen == null)
+        {
+            screen = View.inflate(mContext, layoutId, null);
+            screen.setLayoutParams(new LayoutParams(width, height));
+            mScreens.put(layoutId, screen);
+        }
+        return screen;
+    }
+
+    private DepartureRow getDepartureRow(TableLayout tl, int index) {
+        while (mDepartureRows.size() <= index) {
+            //row and target line come as a pair
+            mInflater.inflate(R.layout.table_row_departure, tl, true);
+            final int childCount = tl.getChildCount();
+            mDepartureRows.add(new DepartureRow(tl.getChildAt(childCount - 2), tl.getChildAt(childCount - 1),
+                    mContext.getResources().getColor(R.color.red)));
+        }
+        return mDepartureRows.get(index);
+    }
+
+    private void bindDepartureRow(DepartureRow row, Departure depature, long now) {
+        row.setVisibility(View.VISIBLE);
+        setTextIfChanged(row.line, getLineText(depature.line));
+        //set color if style exist
+        if(depature.line.style != null)
+            row.setColors(depature.line.style.backgroundColor, depature.line.style.foregroundColor);
+        else
+            row.setColors(row.defaultBackground, row.defaultForeground);
+        setTextIfChanged(row.time, getDepartureText(depature, now));//TODO: delays
+        setTextIfChanged(row.target, depature.destination.name);
+    }
+
+    /**
+     * setText() always invalidates and, for wrap_content views, asks for a new layout.
+     */
+    private static void setTextIfChanged(TextView textView, CharSequence text) {
+        if(!TextUtils.equals(textView.getText(), text))
+            textView.setText(text);
+    }
 
-	private CharSequence getDepartureText(Departure departure) {
+    private static void setVisibilityIfChanged(View view, int visibility) {
+        if(view.getVisibility() != visibility)
+            view.setVisibility(visibility);
+    }
+
+    static class DepartureRow {
+        final View row;
+        final View targetRow;
+        final TextView line;
+        final TextView time;
+        final TextView target;
+        final int defaultBackground;
+        final int defaultForeground;
+        private int background;
+        private int foreground;
+
+        DepartureRow(View row, View targetRow, int defaultBackground) {
+            this.row = row;
+            this.targetRow = targetRow;
+            this.line = (TextView) row.findViewById(R.id.depLine);
+            this.time = (TextView) row.findViewById(R.id.depTime);
+            this.target = (TextView) targetRow.findViewById(R.id.depTarget);
+            this.defaultBackground = defaultBackground;
+            this.defaultForeground = line.getCurrentTextColor();
+            this.background = defaultBackground;
+            this.foreground = defaultForeground;
+        }
 
-		long now = System.currentTimeMillis();
-		long planned = (((departure.plannedTime.getTime() - now)/1000)/60);
+        void setVisibility(int visibility) {
+            setVisibilityIfChanged(row, visibility);
+            setVisibilityIfChanged(targetRow, visibility);
+        }
+
+        void setColors(int background, int foreground) {
+            if(this.background != background)
+            {
+                line.setBackgroundColor(background);
+                this.background = background;
+            }
+            if(this.foreground != foreground)
+            {
+                line.setTextColor(foreground);
+                this.foreground = foreground;
+            }
+        }
+    }
+
+
+	private CharSequence getDepartureText(Departure departure, long now) {
+
+		long planned = Departures.minutesUntil(departure.plannedTime.getTime(), now);
 		String departureTimePlanned = planned+"";
 		String departureTimePredict = "-";
 		if(departure.predictedTime != null)
 		{
-			long predict = (((departure.predictedTime.getTime() - now)/1000)/60);
+			long predict = Departures.minutesUntil(departure.predictedTime.getTime(), now);
 			long delay = predict - planned;
 			if(delay > 0)
 				departureTimePredict = "+"+delay;
@@ -698,32 +946,6 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 		return depatureTimeText;
 	}
 
-    private void filterGoneDepartures(List<StationDepartures> departuresList) {
-        for (StationDepartures stationDepartures : departuresList) {
-            List<Departure> depatures = stationDepartures.departures;
-            for(int i = 0; i < depatures.size(); i++)
-            {
-                if(alreadyDeparted(depatures.get(i)))
-                    depatures.remove(i);
-            }
-        }
-    }
-
-    private boolean alreadyDeparted(Departure departure) {
-        long now = System.currentTimeMillis();
-        long planned = (((departure.plannedTime.getTime() - now)/1000)/60);
-        if(departure.predictedTime != null)
-        {
-            long predict = (((departure.predictedTime.getTime() - now)/1000)/60);
-            if(predict <= 0)
-                return true;
-        }
-        if(planned <= 0)
-            return true;
-        return false;
-    }
-
-
 	private CharSequence getLineText(Line line) {
 		String label = line.label.substring(1);//cut off the type like "B" or "T"
 		return label;
@@ -752,18 +974,31 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
 	@Override
 	public void nearbyStationsReceived(NearbyLocationsResult result) {
-		this.mQueryDeparturesResults.clear();
+		mDepartureStore.clear();
         if(result != null && result.locations != null && result.locations.size() > 0)
         {
+            //a refined search brings another list, stay on the station shown if it is still there
+            final String shownId = stations != null && mStationIndex < stations.size() ? stations.get(mStationIndex).id : null;
             this.stations = result.locations;
+            mStationIndex = -1;
+            for (int i = 0; shownId != null && i < stations.size(); i++) {
+                if(shownId.equals(stations.get(i).id))
+                {
+                    mStationIndex = i;
+                    break;
+                }
+            }
+            if(mStationIndex < 0)
+            {
+                mStationIndex = 0;
+                mScrollIndex = 0;
+            }
             state = STATE_DISPLAY_DATA;
             if(BuildConfig.DEBUG)
                 Log.d(TAG, "Found: "+result.locations.size()+" stations");
             redraw();
-            // for eacht station, request depatures
-            for (de.schildbach.pte.dto.Location station: result.locations ) {
-                publicNetworkProvider.getDepatures(station);
-            }
+            // request depatures, lazily
+            requestVisibleDepartures();
         }
         else
         {
@@ -775,37 +1010,41 @@ public class SmartWatchControlExtension extends ControlExtension implements Resu
 
 
 	@Override
-	public void departuresReceived(QueryDeparturesResult result) {
-		if(this.mQueryDeparturesResults == null)
-			this.mQueryDeparturesResults = new ArrayList<QueryDeparturesResult>(0);
-		this.mQueryDeparturesResults.add(result);
-		redraw();
-
+	public void departuresReceived(de.schildbach.pte.dto.Location station, QueryDeparturesResult result) {
+		if(result == null)
+			return; //query failed, already reported
+		final boolean changed = mDepartureStore.put(station.id, result);
+		//results arrive in any order, only redraw if the visible station got new departures
+		if(changed && isVisibleStation(station))
+			redraw();
 	}
 
+	private boolean isVisibleStation(de.schildbach.pte.dto.Location station) {
+		if(state != STATE_DISPLAY_DATA || stations == null || mStationIndex >= stations.size())
+			return false;
+		return TextUtils.equals(stations.get(mStationIndex).id, station.id);
+	}
 
 
 
-    // Define a listener that responds to location updates
-	LocationListener locationListener = new LocationListener() {
 
-		private Location clocation;
+    LocationStrategy.Callback locationCallback = new LocationStrategy.Callback() {
 
-		public void onLocationChanged(Location location) {
-			// Called when a new location is found by the network location provider.
-			clocation = location;
-			Log.v(TAG, "got location to: "+location);
-			state = STATE_LOADING;
-			redraw();
+		public void onLocation(Location location, boolean refined) {
+			Log.v(TAG, "got location to: "+location+" refined: "+refined);
+			if(!refined)
+			{
+				state = STATE_LOADING;
+				redraw();
+			}
+			//a refined location replaces the running search, stations already shown stay until the new ones arrive
 			publicNetworkProvider.getNearbyStations(location);
-			locationManager.removeUpdates(locationListener);
-		};
-
-		public void onStatusChanged(String provider, int status, Bundle extras) {}
-
-		public void onProviderEnabled(String provider) {}
+		}
 
-		public void onProviderDisabled(String provider) {}
+		public void onLocationTimeout() {
+			state = STATE_ERROR_NOLOCATION;
+			redraw();
+		}
 	};
 
     class DelayDisplayChangeTask extends AsyncTask<Void, Void, Void> {
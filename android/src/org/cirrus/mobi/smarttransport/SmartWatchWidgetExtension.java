@@ -0,0 +1,279 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import com.sonyericsson.extras.liveware.aef.control.Control;
+import com.sonyericsson.extras.liveware.aef.widget.Widget;
+import com.sonyericsson.extras.liveware.extension.util.widget.SmartWatchWidgetImage;
+import com.sonyericsson.extras.liveware.extension.util.widget.WidgetExtension;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+
+/**
+ * Shows the next departure of the favourite closest to the user on the SmartWatch widget screen.
+ * While visible it redraws every minute from the departures it has and revalidates them every few
+ * minutes. The last board of the station is on disk, so the widget has something to show right away.
+ * A tap starts the control.
+ */
+public class SmartWatchWidgetExtension extends WidgetExtension implements PublicNetworkProvider.ResultCallbacks {
+
+    private static final String TAG = "SMT/Widget";
+    private static final long MINUTE = 60 * 1000;
+    //the DepartureCache revalidates after its time to live, don't ask it every minute
+    private static final long FETCH_INTERVAL = 3 * MINUTE;
+    private static final int MAX_ROWS = 5;
+
+    private final LocationStrategy mLocationStrategy;
+    private NetworkId mNetworkId;
+    private PublicNetworkProvider mPublicNetworkProvider;
+    private List<de.schildbach.pte.dto.Location> mFavourites;
+    private Location mLocation;
+    private de.schildbach.pte.dto.Location mStation;
+    private DepartureBoard mBoard;
+    private long mLastFetch;
+    private String mMessage;
+
+    public SmartWatchWidgetExtension(Context context, String hostAppPackageName, Handler handler) {
+        super(context, hostAppPackageName);
+        mLocationStrategy = new LocationStrategy((LocationManager) context.getSystemService(Context.LOCATION_SERVICE), handler);
+    }
+
+    @Override
+    public void onStartRefresh() {
+        if(BuildConfig.DEBUG)
+            Log.d(TAG, "start refresh");
+        final SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext);
+        final String prefKey = mContext.getString(R.string.pref_publicnetwork);
+        if(!sharedPref.contains(prefKey))
+        {
+            showMessage(mContext.getString(R.string.widget_no_network));
+            return;
+        }
+        final String providerClass = sharedPref.getString(prefKey, mContext.getString(R.string.pref_transportNetwork_default));
+        final NetworkProvider provider = NetworkProviderRegistry.getInstance(mContext).get(providerClass).provider;
+        if(provider == null)
+        {
+            showMessage(mContext.getString(R.string.widget_no_network));
+            return;
+        }
+        mNetworkId = provider.id();
+        showMessage(mContext.getString(R.string.text_loading));
+        mPublicNetworkProvider = new PublicTransportationAPI(mContext).initNetworkProvider(this, providerClass);
+
+        FavouritesCache.getInstance(mContext).load(mFavouritesListener);
+        //only picks the favourite, a coarse or older fix does
+        mLocationStrategy.start(mLocationCallback);
+        scheduleRepeatingRefresh(System.currentTimeMillis() + MINUTE, MINUTE, SmartTransportExtensionService.EXTENSION_KEY);
+    }
+
+    @Override
+    public void onStopRefresh() {
+        if(BuildConfig.DEBUG)
+            Log.d(TAG, "stop refresh");
+        cancelScheduledRefresh(SmartTransportExtensionService.EXTENSION_KEY);
+        mLocationStrategy.stop();
+        FavouritesCache.getInstance(mContext).removeListener(mFavouritesListener);
+        if(mPublicNetworkProvider != null)
+            mPublicNetworkProvider.cancelRequests();
+    }
+
+    @Override
+    public void onScheduledRefresh() {
+        if(mStation != null && SystemClock.elapsedRealtime() - mLastFetch > FETCH_INTERVAL)
+            fetchDepartures();
+        else
+            redraw();
+    }
+
+    @Override
+    public void onTouch(int type, int x, int y) {
+        if(type == Widget.Intents.EVENT_TYPE_SHORT_TAP)
+            sendToHostApp(new Intent(Control.Intents.CONTROL_START_REQUEST_INTENT));
+    }
+
+    private final FavouritesCache.Listener mFavouritesListener = new FavouritesCache.Listener() {
+        @Override
+        public void favouritesLoaded(List<de.schildbach.pte.dto.Location> favourites) {
+            if(favourites.isEmpty())
+            {
+                showMessage(mContext.getString(R.string.text_nofavs));
+                return;
+            }
+            mFavourites = favourites;
+            selectStation();
+        }
+    };
+
+    private final LocationStrategy.Callback mLocationCallback = new LocationStrategy.Callback() {
+        @Override
+        public void onLocation(Location location, boolean refined) {
+            mLocationStrategy.stop();
+            mLocation = location;
+            if(mFavourites != null)
+                selectStation();
+        }
+
+        @Override
+        public void onLocationTimeout() {
+            //stay with the first favourite
+        }
+    };
+
+    /**
+     * Picks the closest favourite, the first one as long as we don't know where we are.
+     */
+    private void selectStation() {
+        de.schildbach.pte.dto.Location closest = mFavourites.get(0);
+        if(mLocation != null)
+        {
+            float closestDistance = Float.MAX_VALUE;
+            final float[] distance = new float[1];
+            for (de.schildbach.pte.dto.Location favourite : mFavourites) {
+                if(!favourite.hasLocation())
+                    continue;
+                Location.distanceBetween(mLocation.getLatitude(), mLocation.getLongitude(), favourite.lat / 1E6, favourite.lon / 1E6, distance);
+                if(distance[0] < closestDistance)
+                {
+                    closestDistance = distance[0];
+                    closest = favourite;
+                }
+            }
+        }
+        if(mStation != null && mStation.id.equals(closest.id))
+            return;
+        if(BuildConfig.DEBUG)
+            Log.d(TAG, "showing "+closest.id);
+        mStation = closest;
+        mBoard = DepartureBoardCache.getInstance(mContext).get(mNetworkId, closest.id);
+        mMessage = null;
+        redraw();
+        fetchDepartures();
+    }
+
+    private void fetchDepartures() {
+        mLastFetch = SystemClock.elapsedRealtime();
+        mPublicNetworkProvider.getDepatures(mStation);
+    }
+
+    @Override
+    public void departuresReceived(de.schildbach.pte.dto.Location station, QueryDeparturesResult result) {
+        if(mStation == null || !mStation.id.equals(station.id))
+            return; //for the station we showed before
+        if(result == null || result.status != QueryDeparturesResult.Status.OK)
+        {
+            redraw(); //keep the board we have
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        List<Departure> upcoming = Departures.upcoming(result, now);
+        if(upcoming.size() > MAX_ROWS)
+            upcoming = upcoming.subList(0, MAX_ROWS);
+        final String name = station.uniqueShortName() != null ? station.uniqueShortName() : station.name;
+        mBoard = DepartureBoard.create(name, upcoming, now);
+        DepartureBoardCache.getInstance(mContext).put(mNetworkId, station.id, mBoard);
+        redraw();
+    }
+
+    @Override
+    public void nearbyStationsReceived(NearbyLocationsResult result) {
+        //not asked for
+    }
+
+    private void showMessage(String message) {
+        mMessage = message;
+        redraw();
+    }
+
+    private void redraw() {
+        final DepartureWidgetImage image = new DepartureWidgetImage(mContext);
+        image.setIconByResourceId(R.drawable.ic_launcher);
+        if(mMessage != null || mBoard == null)
+        {
+            image.setText(mMessage != null ? mMessage : mContext.getString(R.string.text_loading));
+        }
+        else
+        {
+            final long now = System.currentTimeMillis();
+            image.mStationName = mBoard.getStationName();
+            final int row = nextRow(mBoard, now);
+            if(row >= 0)
+            {
+                image.mLine = mBoard.getLine(row);
+                image.mDestination = mBoard.getDestination(row);
+                image.mMinutes = mContext.getString(R.string.widget_minutes, Departures.minutesUntil(departureTime(mBoard, row), now));
+            }
+            else
+                image.mDestination = mContext.getString(R.string.widget_no_departures);
+            image.setInnerLayoutResourceId(R.layout.widget_departure);
+        }
+        showBitmap(image.getBitmap());
+    }
+
+    /**
+     * @return the first row that is not gone, -1 if all are
+     */
+    private static int nextRow(DepartureBoard board, long now) {
+        for (int i = 0; i < board.getRowCount(); i++) {
+            if(departureTime(board, i) - now >= MINUTE)
+                return i;
+        }
+        return -1;
+    }
+
+    private static long departureTime(DepartureBoard board, int row) {
+        return board.getBaseTime() + (board.getPlannedMinutes(row) + board.getDelay(row)) * MINUTE;
+    }
+
+    private static class DepartureWidgetImage extends SmartWatchWidgetImage {
+
+        String mStationName;
+        String mLine;
+        String mMinutes;
+        String mDestination;
+
+        DepartureWidgetImage(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void applyInnerLayout(LinearLayout innerLayout) {
+            ((TextView) innerLayout.findViewById(R.id.widget_station)).setText(mStationName);
+            ((TextView) innerLayout.findViewById(R.id.widget_line)).setText(mLine);
+            ((TextView) innerLayout.findViewById(R.id.widget_minutes)).setText(mMinutes);
+            ((TextView) innerLayout.findViewById(R.id.widget_destination)).setText(mDestination);
+        }
+    }
+}
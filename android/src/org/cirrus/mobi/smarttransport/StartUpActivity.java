@@ -58,7 +58,7 @@ public class StartUpActivity extends Activity implements ResultCallbacks {
 		networkProvider = new BahnProvider();
 		// Acquire a reference to the system Location Manager
 		locationManager = (LocationManager) this.getSystemService(Context.LOCATION_SERVICE);
-		publicNetworkProvider = new PublicNetworkProvider(this, networkProvider);
+		publicNetworkProvider = new PublicNetworkProvider(this, networkProvider, NearbyStationsCache.getInstance(this));
 
 		/*Button b1 = (Button) findViewById(R.id.button1);
 		b1.setOnClickListener(new OnClickListener() {
@@ -116,7 +116,7 @@ public class StartUpActivity extends Activity implements ResultCallbacks {
 		
 	}
 	@Override
-	public void departuresReceived(QueryDeparturesResult result) {
+	public void departuresReceived(de.schildbach.pte.dto.Location station, QueryDeparturesResult result) {
 		
 		
 	}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of SmartTransport
+ *
+ * SmartTransport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SmartTransport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SmartTransport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cirrus.mobi.smarttransport.tests;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.cirrus.mobi.smarttransport.DepartureBoard;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.Line;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.ResultHeader;
+import de.schildbach.pte.dto.StationDepartures;
+import de.schildbach.pte.dto.Style;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class DepartureBoardTestCase extends AndroidTestCase {
+
+    private static final long MINUTE = 60 * 1000;
+    //some time on a full minute
+    private static final long NOW = 1434103200000L;
+
+    private Location mStation;
+    private List<Departure> mDepartures;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStation = new Location(LocationType.STATION, "20018235", 51220250, 6793177, "Düsseldorf", "Hauptbahnhof");
+        final Line u79 = new Line("u79", "vrr", Product.SUBWAY, "UU79", new Style(0xff3a6ea5, 0xffffffff));
+        final Line bus = new Line("b835", "vrr", Product.BUS, "B835");
+        final Location duisburg = new Location(LocationType.STATION, "1", "Duisburg", "Meiderich Süd");
+        final Location uni = new Location(LocationType.STATION, "2", "Düsseldorf", "Universität Ost");
+
+        mDepartures = new ArrayList<Departure>();
+        for (int i = 0; i < 20; i++) {
+            final Date planned = new Date(NOW + (2 + i * 3) * MINUTE);
+            //every third one is late, one is early
+            Date predicted = null;
+            if(i % 3 == 0)
+                predicted = new Date(planned.getTime() + (i + 1) * MINUTE);
+            else if(i == 4)
+                predicted = new Date(planned.getTime() - MINUTE);
+            mDepartures.add(new Departure(planned, predicted, i % 2 == 0 ? u79 : bus, null, i % 4 < 2 ? duisburg : uni, null, null));
+        }
+        //planned before the board's base time but late enough to still be upcoming
+        mDepartures.add(0, new Departure(new Date(NOW - 3 * MINUTE), new Date(NOW + 5 * MINUTE), bus, null, uni, null, null));
+    }
+
+    public void testRoundTrip() throws IOException {
+        final DepartureBoard board = DepartureBoard.create("Düsseldorf Hbf", mDepartures, NOW + 30 * 1000);
+        final DepartureBoard decoded = DepartureBoard.decode(board.encode());
+
+        assertEquals("Düsseldorf Hbf", decoded.getStationName());
+        assertEquals(NOW, decoded.getBaseTime());
+        assertEquals(mDepartures.size(), decoded.getRowCount());
+        for (int i = 0; i < mDepartures.size(); i++) {
+            final Departure departure = mDepartures.get(i);
+            assertEquals(departure.line.label, decoded.getLine(i));
+            assertEquals(departure.destination.name, decoded.getDestination(i));
+            assertEquals((departure.plannedTime.getTime() - NOW) / MINUTE, decoded.getPlannedMinutes(i));
+            assertEquals(departure.predictedTime != null, decoded.hasDelay(i));
+            if(departure.predictedTime != null)
+            {
+                assertEquals((departure.predictedTime.getTime() - departure.plannedTime.getTime()) / MINUTE, decoded.getDelay(i));
+                assertEquals(departure.predictedTime.getTime(),
+                        decoded.getBaseTime() + (decoded.getPlannedMinutes(i) + decoded.getDelay(i)) * MINUTE);
+            }
+            assertEquals(departure.line.style != null, decoded.hasStyle(i));
+            if(departure.line.style != null)
+            {
+                assertEquals(departure.line.style.backgroundColor, decoded.getBackgroundColor(i));
+                assertEquals(departure.line.style.foregroundColor, decoded.getForegroundColor(i));
+            }
+        }
+    }
+
+    public void testEmptyBoard() throws IOException {
+        final DepartureBoard decoded = DepartureBoard.decode(DepartureBoard.create(null, new ArrayList<Departure>(), NOW).encode());
+        assertEquals("", decoded.getStationName());
+        assertEquals(0, decoded.getRowCount());
+    }
+
+    public void testRejectsOtherData() {
+        final byte[] data = DepartureBoard.create("x", mDepartures, NOW).encode();
+        final byte[] otherVersion = data.clone();
+        otherVersion[2] = (byte) (DepartureBoard.VERSION + 1);
+        final byte[] truncated = new byte[data.length / 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        for (byte[] bad : new byte[][]{otherVersion, truncated, new byte[0], "hello".getBytes()}) {
+            try {
+                DepartureBoard.decode(bad);
+                fail("decoded invalid data");
+            } catch (IOException e) {
+                //expected
+            }
+        }
+    }
+
+    public void testSmallerThanSerialization() throws IOException {
+        final QueryDeparturesResult result = new QueryDeparturesResult(new ResultHeader(NetworkId.VRR, "test"));
+        result.stationDepartures.add(new StationDepartures(mStation, mDepartures, null));
+        final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(result);
+        out.close();
+
+        final int boardSize = DepartureBoard.create(mStation.name, mDepartures, NOW).encode().length;
+        Log.d("DepartureBoardTestCase", "board: " + boardSize + " bytes, serialized: " + serialized.size() + " bytes");
+        //fits a few AppMessages instead of dozens
+        assertTrue(boardSize * 10 < serialized.size());
+    }
+}